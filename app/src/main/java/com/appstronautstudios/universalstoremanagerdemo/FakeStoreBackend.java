@@ -0,0 +1,137 @@
+package com.appstronautstudios.universalstoremanagerdemo;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchaseHistoryParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+import com.appstronautstudios.universalstoremanager.managers.StoreBackend;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local stand-in for Google Play. Connects and answers purchase queries from a fixed list after a
+ * configurable delay, with callbacks on the main thread like the real client. Product details and
+ * purchase flows are not supported.
+ */
+public class FakeStoreBackend implements StoreBackend {
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Purchase> ownedPurchases = new ArrayList<>();
+    private final long latencyMs;
+    private volatile int connectionState = BillingClient.ConnectionState.DISCONNECTED;
+
+    /**
+     * @param latencyMs - simulated round trip for every async call
+     * @param ownedSkus - SKUs reported as owned (purchased and acknowledged)
+     */
+    public FakeStoreBackend(long latencyMs, List<String> ownedSkus) {
+        this.latencyMs = latencyMs;
+        long now = System.currentTimeMillis();
+        for (String sku : ownedSkus) {
+            try {
+                ownedPurchases.add(new Purchase("{"
+                        + "\"orderId\":\"GPA.fake-" + sku + "\","
+                        + "\"packageName\":\"com.appstronautstudios.universalstoremanagerdemo\","
+                        + "\"productId\":\"" + sku + "\","
+                        + "\"purchaseTime\":" + now + ","
+                        + "\"purchaseState\":0,"
+                        + "\"purchaseToken\":\"fake-token-" + sku + "\","
+                        + "\"quantity\":1,"
+                        + "\"acknowledged\":true"
+                        + "}", "fake-signature"));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static BillingResult result(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).build();
+    }
+
+    @Override
+    public void initialize(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+        // nothing to create. Purchases never update on their own
+    }
+
+    @Override
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    @Override
+    public boolean isReady() {
+        return connectionState == BillingClient.ConnectionState.CONNECTED;
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        connectionState = BillingClient.ConnectionState.CONNECTING;
+        mainHandler.postDelayed(() -> {
+            connectionState = BillingClient.ConnectionState.CONNECTED;
+            listener.onBillingSetupFinished(result(BillingClient.BillingResponseCode.OK));
+        }, latencyMs);
+    }
+
+    @Override
+    public void endConnection() {
+        connectionState = BillingClient.ConnectionState.CLOSED;
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+        return result(BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED);
+    }
+
+    @Override
+    public void queryProductDetailsAsync(QueryProductDetailsParams params, ProductDetailsResponseListener listener) {
+        mainHandler.postDelayed(() -> listener.onProductDetailsResponse(
+                result(BillingClient.BillingResponseCode.OK), new ArrayList<>()), latencyMs);
+    }
+
+    @Override
+    public void queryPurchasesAsync(QueryPurchasesParams params, PurchasesResponseListener listener) {
+        // params don't expose the product type, so both queries see every owned purchase. The
+        // manager merges them by SKU so the result is the same
+        mainHandler.postDelayed(() -> listener.onQueryPurchasesResponse(
+                result(BillingClient.BillingResponseCode.OK), new ArrayList<>(ownedPurchases)), latencyMs);
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(QueryPurchaseHistoryParams params, PurchaseHistoryResponseListener listener) {
+        mainHandler.postDelayed(() -> listener.onPurchaseHistoryResponse(
+                result(BillingClient.BillingResponseCode.OK), new ArrayList<>()), latencyMs);
+    }
+
+    @Override
+    public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+        mainHandler.postDelayed(() -> listener.onAcknowledgePurchaseResponse(
+                result(BillingClient.BillingResponseCode.OK)), latencyMs);
+    }
+
+    @Override
+    public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+        mainHandler.postDelayed(() -> listener.onConsumeResponse(
+                result(BillingClient.BillingResponseCode.OK), params.getPurchaseToken()), latencyMs);
+    }
+}
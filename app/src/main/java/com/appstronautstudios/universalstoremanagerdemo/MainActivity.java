@@ -1,6 +1,7 @@
 package com.appstronautstudios.universalstoremanagerdemo;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -13,11 +14,17 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long startElapsedMs = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
         final TextView messageTV = findViewById(R.id.message);
 
+        if (getIntent().getBooleanExtra(StartupBenchmark.EXTRA_STARTUP_BENCHMARK, false)) {
+            StartupBenchmark.run(this, startElapsedMs, messageTV);
+            return;
+        }
+
         StoreManager.getInstance().setManagedSkus(null, null);
         StoreManager.getInstance().addEventListener(new StoreEventListener() {
             @Override
@@ -0,0 +1,72 @@
+package com.appstronautstudios.universalstoremanagerdemo;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.appstronautstudios.universalstoremanager.managers.StoreManager;
+import com.appstronautstudios.universalstoremanager.utils.SuccessFailListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Cold-start scenario: set up StoreManager against FakeStoreBackend and report how long it takes
+ * from MainActivity.onCreate until entitlements are available, plus every traced phase. Run with
+ * <p>
+ * adb shell am force-stop com.appstronautstudios.universalstoremanagerdemo
+ * adb shell am start -W -n com.appstronautstudios.universalstoremanagerdemo/.MainActivity --ez startup_benchmark true
+ * <p>
+ * and read the "StartupBenchmark" logcat tag. Capture a Perfetto trace to see the "USM ..."
+ * sections on a timeline.
+ */
+public class StartupBenchmark {
+
+    public static final String EXTRA_STARTUP_BENCHMARK = "startup_benchmark";
+
+    private static final String TAG = "StartupBenchmark";
+    private static final long BUDGET_MS = 500; // time-to-entitlements budget for a cold start
+    private static final long FAKE_LATENCY_MS = 20; // per simulated store call
+    private static final String BENCHMARK_SKU = "benchmark_sub";
+
+    public static void run(Context context, long startElapsedMs, TextView output) {
+        // own instance and namespace so fake purchases never reach the default store's data
+        StoreManager storeManager = StoreManager.newBuilder()
+                .setBackend(new FakeStoreBackend(FAKE_LATENCY_MS, Collections.singletonList(BENCHMARK_SKU)))
+                .setNamespace("startup_benchmark")
+                .build();
+
+        ArrayList<String> subs = new ArrayList<>();
+        subs.add(BENCHMARK_SKU);
+        storeManager.setupBillingProcessor(context, subs, new ArrayList<>(), new SuccessFailListener() {
+            @Override
+            public void success(Object object) {
+                long timeToEntitlements = SystemClock.elapsedRealtime() - startElapsedMs;
+                boolean entitled = storeManager.isSubscribedTo(BENCHMARK_SKU);
+
+                StringBuilder report = new StringBuilder();
+                report.append("time to entitlements: ").append(timeToEntitlements).append(" ms (budget ")
+                        .append(BUDGET_MS).append(" ms) ")
+                        .append(timeToEntitlements <= BUDGET_MS ? "PASS" : "OVER BUDGET").append('\n');
+                report.append("entitled: ").append(entitled).append('\n');
+                for (Map.Entry<String, Long> phase : storeManager.getTrace().getDurationsMicros().entrySet()) {
+                    report.append(phase.getKey()).append(": ")
+                            .append(phase.getValue() / 1000f).append(" ms\n");
+                }
+
+                Log.i(TAG, report.toString());
+                output.setText(report.toString());
+                storeManager.shutdown();
+            }
+
+            @Override
+            public void failure(Object object) {
+                Log.e(TAG, "setup failed: " + object);
+                output.setText("startup benchmark failed: " + object);
+                storeManager.shutdown();
+            }
+        });
+    }
+}
@@ -0,0 +1,213 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local balances for registered consumable SKUs. A purchase is credited once per purchase token
+ * as soon as it arrives and stays "unsettled" until its consumeAsync call is confirmed.
+ * <p>
+ * Balance reads and spends are lock-free and safe from any thread. Everything else (credits,
+ * settlement, registration, snapshots) only runs on StoreManager's state executor. A spend lowers
+ * the live balance before its debit reaches the journal, so snapshots are taken from a separate
+ * copy of the balances that only moves as events are journaled.
+ */
+final class ConsumableLedger {
+
+    private final Map<String, Long> unitsPerPurchase = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> balances = new ConcurrentHashMap<>();
+    private final Map<String, Long> journaledBalances = new HashMap<>();
+    private final Set<String> creditedTokens = new HashSet<>();
+    private final Map<String, Set<String>> unsettled = new LinkedHashMap<>(); // token -> skus
+
+    void register(String sku, long units) {
+        unitsPerPurchase.put(sku, units);
+    }
+
+    boolean isRegistered(String sku) {
+        return unitsPerPurchase.containsKey(sku);
+    }
+
+    long balance(String sku) {
+        AtomicLong balance = balances.get(sku);
+        return balance != null ? balance.get() : 0;
+    }
+
+    /**
+     * @return - true if the full amount was available and has been deducted
+     */
+    boolean tryDebit(String sku, long amount) {
+        AtomicLong balance = balances.get(sku);
+        if (balance == null || amount <= 0) {
+            return false;
+        }
+        while (true) {
+            long current = balance.get();
+            if (current < amount) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - amount)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Credit every registered SKU in a purchase, scaled by its quantity
+     *
+     * @return - units credited per SKU. Empty if the token was already credited or holds no
+     * registered consumables
+     */
+    Map<String, Long> credit(Purchase purchase) {
+        if (creditedTokens.contains(purchase.getPurchaseToken())) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> credits = new HashMap<>();
+        for (String sku : purchase.getProducts()) {
+            Long units = unitsPerPurchase.get(sku);
+            if (units != null) {
+                credits.put(sku, units * purchase.getQuantity());
+            }
+        }
+        if (!credits.isEmpty()) {
+            applyCredit(purchase.getPurchaseToken(), credits);
+        }
+        return credits;
+    }
+
+    void applyCredit(String token, Map<String, Long> credits) {
+        if (!creditedTokens.add(token)) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : credits.entrySet()) {
+            balanceFor(entry.getKey()).addAndGet(entry.getValue());
+            addJournaled(entry.getKey(), entry.getValue());
+        }
+        unsettled.put(token, new HashSet<>(credits.keySet()));
+    }
+
+    void applyDebit(String sku, long amount) {
+        balanceFor(sku).addAndGet(-amount);
+        recordDebit(sku, amount);
+    }
+
+    /**
+     * Catch the journaled balances up with a spend tryDebit already made live
+     */
+    void recordDebit(String sku, long amount) {
+        addJournaled(sku, -amount);
+    }
+
+    private void addJournaled(String sku, long amount) {
+        Long current = journaledBalances.get(sku);
+        journaledBalances.put(sku, (current != null ? current : 0) + amount);
+    }
+
+    /**
+     * @return - true the first time a token settles. Retries return false so they're recorded once
+     */
+    boolean settle(String token) {
+        return unsettled.remove(token) != null;
+    }
+
+    /**
+     * @return - copy of credited purchase tokens still waiting on consumeAsync, mapped to the SKUs
+     * they credited
+     */
+    Map<String, Set<String>> unsettled() {
+        Map<String, Set<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> entry : unsettled.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        }
+        return copy;
+    }
+
+    /**
+     * Forget settled tokens Google Play no longer returns. A consumed purchase never comes back so
+     * there is nothing left to guard against crediting twice
+     *
+     * @param ownedTokens - purchase tokens from a query that finished after any settlement so far
+     */
+    void pruneCredited(Set<String> ownedTokens) {
+        for (Iterator<String> tokens = creditedTokens.iterator(); tokens.hasNext(); ) {
+            String token = tokens.next();
+            if (!unsettled.containsKey(token) && !ownedTokens.contains(token)) {
+                tokens.remove(); // dropped from the next snapshot
+            }
+        }
+    }
+
+    private AtomicLong balanceFor(String sku) {
+        AtomicLong balance = balances.get(sku);
+        if (balance == null) {
+            AtomicLong created = new AtomicLong();
+            balance = balances.putIfAbsent(sku, created);
+            if (balance == null) {
+                balance = created;
+            }
+        }
+        return balance;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject balancesJson = new JSONObject();
+        for (Map.Entry<String, Long> entry : journaledBalances.entrySet()) {
+            balancesJson.put(entry.getKey(), (long) entry.getValue());
+        }
+        JSONObject unsettledJson = new JSONObject();
+        for (Map.Entry<String, Set<String>> entry : unsettled.entrySet()) {
+            JSONArray skus = new JSONArray();
+            for (String sku : entry.getValue()) {
+                skus.put(sku);
+            }
+            unsettledJson.put(entry.getKey(), skus);
+        }
+        JSONArray creditedJson = new JSONArray();
+        for (String token : creditedTokens) {
+            creditedJson.put(token);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("balances", balancesJson);
+        json.put("unsettled", unsettledJson);
+        json.put("credited", creditedJson);
+        return json;
+    }
+
+    void restore(JSONObject json) throws JSONException {
+        JSONObject balancesJson = json.getJSONObject("balances");
+        for (Iterator<String> keys = balancesJson.keys(); keys.hasNext(); ) {
+            String sku = keys.next();
+            balanceFor(sku).set(balancesJson.getLong(sku));
+            journaledBalances.put(sku, balancesJson.getLong(sku));
+        }
+        JSONObject unsettledJson = json.getJSONObject("unsettled");
+        for (Iterator<String> keys = unsettledJson.keys(); keys.hasNext(); ) {
+            String token = keys.next();
+            JSONArray skusJson = unsettledJson.getJSONArray(token);
+            Set<String> skus = new HashSet<>();
+            for (int i = 0; i < skusJson.length(); i++) {
+                skus.add(skusJson.getString(i));
+            }
+            unsettled.put(token, skus);
+        }
+        JSONArray creditedJson = json.getJSONArray("credited");
+        for (int i = 0; i < creditedJson.length(); i++) {
+            creditedTokens.add(creditedJson.getString(i));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Append-only file of individually encrypted records. Each record is framed as
+ * [int frame length][byte iv length][iv][AES-GCM ciphertext] and written with a single write so
+ * appending never rewrites earlier data. A record cut short by a crash fails its length or GCM
+ * tag check and marks the end of the readable data.
+ */
+final class EncryptedRecordFile {
+
+    interface RecordVisitor {
+        /**
+         * @return - true to keep reading, false to stop after this record
+         */
+        boolean visit(byte[] record);
+    }
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_BITS = 128;
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+
+    private final File file;
+    private final SecretKey key;
+
+    EncryptedRecordFile(File file, String keyAlias) throws GeneralSecurityException, IOException {
+        this.file = file;
+        this.key = loadOrCreateKey(keyAlias);
+    }
+
+    /**
+     * Synchronized across every instance. Two state threads racing to create the same alias would
+     * otherwise both generate it, and records sealed with the replaced key would read as a torn
+     * tail and be truncated
+     */
+    private static synchronized SecretKey loadOrCreateKey(String alias) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        if (keyStore.containsAlias(alias)) {
+            return (SecretKey) keyStore.getKey(alias, null);
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+    /**
+     * Encrypt and durably append one record. A failed write is cut back off so later appends don't
+     * land behind a partial frame that replay would stop at
+     */
+    void append(byte[] record) throws GeneralSecurityException, IOException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(record);
+
+        int frameLength = 1 + iv.length + sealed.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + frameLength);
+        frame.putInt(frameLength);
+        frame.put((byte) iv.length);
+        frame.put(iv);
+        frame.put(sealed);
+
+        long start = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(frame.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            try {
+                truncate(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt records in order starting at a frame boundary
+     *
+     * @param offset  - byte offset to start from. 0 or a value previously returned by read
+     * @param visitor - receives each record. Return false to stop early
+     * @return - offset just past the last record visited. Less than length() if reading stopped
+     * early or hit a torn/corrupt record
+     */
+    long read(long offset, RecordVisitor visitor) throws IOException {
+        return read(offset, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Same as read(offset, visitor) but never visits a record starting at or past limit
+     *
+     * @param limit - frame boundary to stop at (e.g., a committed length)
+     */
+    long read(long offset, long limit, RecordVisitor visitor) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            fileIn.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+            long position = offset;
+            while (position < limit) {
+                byte[] frame;
+                try {
+                    int frameLength = in.readInt();
+                    if (frameLength <= 1 || frameLength > MAX_FRAME_BYTES) {
+                        return position; // garbage length. Treat as torn tail
+                    }
+                    frame = new byte[frameLength];
+                    in.readFully(frame);
+                } catch (EOFException e) {
+                    return position;
+                }
+
+                byte[] record;
+                try {
+                    record = open(frame);
+                } catch (GeneralSecurityException e) {
+                    return position; // partially written or tampered record
+                }
+
+                position += 4 + frame.length;
+                if (!visitor.visit(record)) {
+                    return position;
+                }
+            }
+            return position;
+        }
+    }
+
+    private byte[] open(byte[] frame) throws GeneralSecurityException {
+        int ivLength = frame[0] & 0xFF;
+        if (ivLength == 0 || 1 + ivLength >= frame.length) {
+            throw new GeneralSecurityException("Malformed frame");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, frame, 1, ivLength));
+        return cipher.doFinal(frame, 1 + ivLength, frame.length - 1 - ivLength);
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * Cut the file back to a frame boundary (e.g., to drop a torn tail or clear after compaction)
+     */
+    void truncate(long length) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+            raf.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable compiled form of the registered entitlement groups. Every SKU referenced by a group
+ * gets a bit position, every group becomes a BitSet over those positions and the currently owned
+ * SKUs are folded into a single BitSet so that checking a feature is one intersects() call.
+ */
+final class EntitlementIndex {
+
+    static final EntitlementIndex EMPTY = new EntitlementIndex(
+            Collections.emptyMap(), Collections.emptyMap(), null);
+
+    private final Map<String, Integer> skuBits;
+    private final Map<String, BitSet> groupBits;
+    private final BitSet ownedBits; // null until purchases are loaded
+    private final Map<String, Boolean> states;
+
+    private EntitlementIndex(Map<String, Integer> skuBits, Map<String, BitSet> groupBits, BitSet ownedBits) {
+        this.skuBits = skuBits;
+        this.groupBits = groupBits;
+        this.ownedBits = ownedBits;
+
+        // resolve every group once up front so bulk reads are free
+        Map<String, Boolean> states = new HashMap<>(groupBits.size() * 2);
+        for (Map.Entry<String, BitSet> entry : groupBits.entrySet()) {
+            states.put(entry.getKey(), ownedBits != null && entry.getValue().intersects(ownedBits));
+        }
+        this.states = Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * @param groups    - group name to every SKU (sub or in-app) that unlocks it
+     * @param purchases - current purchase cache keyed by SKU. null if not loaded yet
+     * @return - index with fresh bit assignments for the provided groups
+     */
+    static EntitlementIndex compile(Map<String, ? extends Collection<String>> groups, Map<String, Purchase> purchases) {
+        Map<String, Integer> skuBits = new HashMap<>();
+        Map<String, BitSet> groupBits = new HashMap<>(groups.size() * 2);
+        for (Map.Entry<String, ? extends Collection<String>> entry : groups.entrySet()) {
+            BitSet bits = new BitSet();
+            for (String sku : entry.getValue()) {
+                Integer bit = skuBits.get(sku);
+                if (bit == null) {
+                    bit = skuBits.size();
+                    skuBits.put(sku, bit);
+                }
+                bits.set(bit);
+            }
+            groupBits.put(entry.getKey(), bits);
+        }
+
+        return new EntitlementIndex(
+                Collections.unmodifiableMap(skuBits),
+                Collections.unmodifiableMap(groupBits),
+                ownedBits(skuBits, purchases));
+    }
+
+    /**
+     * @param purchases - updated purchase cache keyed by SKU. null if not loaded yet
+     * @return - index sharing this one's groups with the owned set rebuilt from purchases
+     */
+    EntitlementIndex withPurchases(Map<String, Purchase> purchases) {
+        return new EntitlementIndex(skuBits, groupBits, ownedBits(skuBits, purchases));
+    }
+
+    private static BitSet ownedBits(Map<String, Integer> skuBits, Map<String, Purchase> purchases) {
+        if (purchases == null) {
+            return null;
+        }
+
+        BitSet owned = new BitSet(skuBits.size());
+        for (String sku : purchases.keySet()) {
+            Integer bit = skuBits.get(sku);
+            if (bit != null) {
+                owned.set(bit);
+            }
+        }
+        return owned;
+    }
+
+    boolean has(String group) {
+        BitSet bits = groupBits.get(group);
+        return bits != null && ownedBits != null && bits.intersects(ownedBits);
+    }
+
+    Map<String, Boolean> states() {
+        return states;
+    }
+
+    Collection<String> groupNames() {
+        return groupBits.keySet();
+    }
+}
@@ -0,0 +1,93 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PendingPurchasesParams;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchaseHistoryParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+
+/**
+ * Default StoreBackend backed by Google Play Billing
+ */
+public class PlayStoreBackend implements StoreBackend {
+
+    private BillingClient billingClient;
+
+    @Override
+    public void initialize(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+        PendingPurchasesParams params = PendingPurchasesParams.newBuilder()
+                .enableOneTimeProducts()
+                .build();
+        billingClient = BillingClient.newBuilder(context)
+                .enablePendingPurchases(params)
+                .setListener(purchasesUpdatedListener)
+                .build();
+    }
+
+    @Override
+    public int getConnectionState() {
+        return billingClient.getConnectionState();
+    }
+
+    @Override
+    public boolean isReady() {
+        return billingClient.isReady();
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        billingClient.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        if (billingClient != null) {
+            billingClient.endConnection();
+        }
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+        return billingClient.launchBillingFlow(activity, params);
+    }
+
+    @Override
+    public void queryProductDetailsAsync(QueryProductDetailsParams params, ProductDetailsResponseListener listener) {
+        billingClient.queryProductDetailsAsync(params, listener);
+    }
+
+    @Override
+    public void queryPurchasesAsync(QueryPurchasesParams params, PurchasesResponseListener listener) {
+        billingClient.queryPurchasesAsync(params, listener);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void queryPurchaseHistoryAsync(QueryPurchaseHistoryParams params, PurchaseHistoryResponseListener listener) {
+        billingClient.queryPurchaseHistoryAsync(params, listener);
+    }
+
+    @Override
+    public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+        billingClient.acknowledgePurchase(params, listener);
+    }
+
+    @Override
+    public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+        billingClient.consumeAsync(params, listener);
+    }
+}
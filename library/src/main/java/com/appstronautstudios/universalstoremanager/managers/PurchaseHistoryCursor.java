@@ -0,0 +1,73 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates imported purchase history oldest import first, decrypting one page of records at a
+ * time so long histories never sit in memory all at once. Reads disk, so iterate off the main
+ * thread.
+ */
+public class PurchaseHistoryCursor implements Iterator<UniversalPurchaseRecord> {
+    private final EncryptedRecordFile file; // null when history storage is unavailable
+    private final long endOffset; // committed length when the cursor was opened
+    private final int pageSize;
+    private final ArrayDeque<UniversalPurchaseRecord> page = new ArrayDeque<>();
+    private long offset;
+    private boolean exhausted;
+
+    PurchaseHistoryCursor(EncryptedRecordFile file, long endOffset, int pageSize) {
+        this.file = file;
+        this.endOffset = endOffset;
+        this.pageSize = pageSize;
+        this.exhausted = file == null || endOffset == 0;
+    }
+
+    static PurchaseHistoryCursor empty() {
+        return new PurchaseHistoryCursor(null, 0, 1);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (page.isEmpty() && !exhausted) {
+            fillPage();
+        }
+        return !page.isEmpty();
+    }
+
+    @Override
+    public UniversalPurchaseRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.poll();
+    }
+
+    private void fillPage() {
+        long start = offset;
+        try {
+            // never past what was committed at open. An import still running may yet be rolled back
+            offset = file.read(offset, endOffset, record -> {
+                try {
+                    page.add(UniversalPurchaseRecord.fromJson(new String(record, StandardCharsets.UTF_8)));
+                } catch (JSONException e) {
+                    e.printStackTrace(); // skip the unreadable record, keep paging
+                }
+                return page.size() < pageSize;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            exhausted = true;
+            return;
+        }
+        // stop at the end of the file, a torn record, or once past what was committed at open
+        if (offset == start || offset >= endOffset) {
+            exhausted = true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import android.content.SharedPreferences;
+
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persisted purchase history. Records are appended one at a time to an encrypted record file and
+ * each product type keeps a checkpoint (newest purchase time imported, plus the tokens imported at
+ * exactly that time) so later imports only add what is new. Reads go through
+ * PurchaseHistoryCursor which pages through the file.
+ * <p>
+ * Imports only run on StoreManager's state executor. Cursors may read from any thread.
+ */
+final class PurchaseHistoryStore {
+
+    private static final String CHECKPOINT_KEY_PREFIX = "history_checkpoint_";
+    private static final String CHECKPOINT_TOKENS_KEY_PREFIX = "history_checkpoint_tokens_";
+    private static final String LENGTH_KEY = "history_length";
+
+    private final EncryptedRecordFile file;
+    private final SharedPreferences prefs;
+
+    PurchaseHistoryStore(EncryptedRecordFile file, SharedPreferences prefs) {
+        this.file = file;
+        this.prefs = prefs;
+    }
+
+    /**
+     * Append records newer than the checkpoint for this product type
+     *
+     * @return - number of records imported
+     */
+    int importRecords(String productType, List<PurchaseHistoryRecord> records) throws GeneralSecurityException, IOException {
+        // anything past the committed length came from an import that died before checkpointing
+        long committedLength = prefs.getLong(LENGTH_KEY, 0);
+        if (file.length() > committedLength) {
+            file.truncate(committedLength);
+        }
+
+        long checkpoint = prefs.getLong(CHECKPOINT_KEY_PREFIX + productType, 0);
+        // several purchases can share the checkpoint millisecond. Only the ones whose tokens were
+        // recorded with it were imported
+        Set<String> checkpointTokens = prefs.getStringSet(CHECKPOINT_TOKENS_KEY_PREFIX + productType, Collections.emptySet());
+        long newest = checkpoint;
+        Set<String> newestTokens = new HashSet<>(checkpointTokens);
+        int imported = 0;
+        for (PurchaseHistoryRecord record : records) {
+            long purchaseTime = record.getPurchaseTime();
+            if (purchaseTime < checkpoint || (purchaseTime == checkpoint && checkpointTokens.contains(record.getPurchaseToken()))) {
+                continue; // already imported last time
+            }
+            try {
+                String json = UniversalPurchaseRecord.fromHistoryRecord(record, productType).toJson();
+                file.append(json.getBytes(StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if (purchaseTime > newest) {
+                newest = purchaseTime;
+                newestTokens.clear();
+            }
+            if (purchaseTime == newest) {
+                newestTokens.add(record.getPurchaseToken());
+            }
+            imported++;
+        }
+
+        if (imported > 0) {
+            prefs.edit()
+                    .putLong(CHECKPOINT_KEY_PREFIX + productType, newest)
+                    .putStringSet(CHECKPOINT_TOKENS_KEY_PREFIX + productType, newestTokens)
+                    .putLong(LENGTH_KEY, file.length())
+                    .commit();
+        }
+        return imported;
+    }
+
+    PurchaseHistoryCursor open(int pageSize) {
+        return new PurchaseHistoryCursor(file, prefs.getLong(LENGTH_KEY, 0), pageSize);
+    }
+}
@@ -0,0 +1,337 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import android.content.SharedPreferences;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durable record of how owned purchases and consumable balances change over time. Every grant,
+ * revoke, acknowledge, consume, credit, debit and settle is appended to an encrypted log as its
+ * own small write. Once the log grows past a threshold it is folded into a snapshot in the
+ * encrypted prefs and truncated. Startup replays the snapshot plus whatever log tail came after
+ * it.
+ * <p>
+ * Not thread safe. StoreManager only touches it from its state executor.
+ */
+final class PurchaseJournal {
+
+    static final String GRANT = "grant";
+    static final String REVOKE = "revoke";
+    static final String ACKNOWLEDGE = "acknowledge";
+    static final String CONSUME = "consume";
+    static final String CREDIT = "credit";
+    static final String DEBIT = "debit";
+    static final String SETTLE = "settle";
+
+    private static final String SNAPSHOT_KEY = "journal_snapshot";
+    private static final String SNAPSHOT_LEDGER_KEY = "journal_ledger";
+    private static final String SNAPSHOT_SEQ_KEY = "journal_snapshot_seq";
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final EncryptedRecordFile log;
+    private final SharedPreferences snapshotPrefs;
+    private final ConsumableLedger ledger;
+    private final Map<String, Purchase> purchases = new HashMap<>(); // folded state keyed by SKU
+    private boolean replayed;
+    private long lastSeq;
+    private int tailLength; // events appended since the last snapshot
+
+    PurchaseJournal(EncryptedRecordFile log, SharedPreferences snapshotPrefs, ConsumableLedger ledger) {
+        this.log = log;
+        this.snapshotPrefs = snapshotPrefs;
+        this.ledger = ledger;
+    }
+
+    /**
+     * Rebuild state from the snapshot and the log tail. Only reads disk the first time
+     *
+     * @return - owned purchases keyed by SKU
+     */
+    Map<String, Purchase> replay() {
+        if (replayed) {
+            return Collections.unmodifiableMap(purchases);
+        }
+        replayed = true;
+
+        long snapshotSeq = snapshotPrefs.getLong(SNAPSHOT_SEQ_KEY, 0);
+        lastSeq = snapshotSeq;
+        try {
+            JSONArray snapshot = new JSONArray(snapshotPrefs.getString(SNAPSHOT_KEY, "[]"));
+            for (int i = 0; i < snapshot.length(); i++) {
+                JSONObject entry = snapshot.getJSONObject(i);
+                put(new Purchase(entry.getString("json"), entry.getString("sig")));
+            }
+            String ledgerSnapshot = snapshotPrefs.getString(SNAPSHOT_LEDGER_KEY, null);
+            if (ledgerSnapshot != null) {
+                ledger.restore(new JSONObject(ledgerSnapshot));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            long end = log.read(0, record -> {
+                try {
+                    JSONObject event = new JSONObject(new String(record, StandardCharsets.UTF_8));
+                    long seq = event.getLong("seq");
+                    // events at or below the snapshot seq were folded in already but survived
+                    // because we died between writing the snapshot and truncating the log
+                    if (seq > snapshotSeq) {
+                        apply(event);
+                        lastSeq = seq;
+                        tailLength++;
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            });
+            if (end < log.length()) {
+                log.truncate(end); // drop a torn tail so new appends start on a clean frame
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return Collections.unmodifiableMap(purchases);
+    }
+
+    boolean isEmpty() {
+        return purchases.isEmpty();
+    }
+
+    void grant(Purchase purchase) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", GRANT);
+            event.put("json", purchase.getOriginalJson());
+            event.put("sig", purchase.getSignature());
+            append(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void revoke(String sku) {
+        appendSkuEvent(REVOKE, sku);
+    }
+
+    void acknowledge(Purchase purchase) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", ACKNOWLEDGE);
+            event.put("token", purchase.getPurchaseToken());
+            append(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void consume(String sku) {
+        appendSkuEvent(CONSUME, sku);
+    }
+
+    /**
+     * Record a credit the ledger has already applied in memory
+     */
+    void credit(String token, Map<String, Long> credits) {
+        try {
+            JSONObject amounts = new JSONObject();
+            for (Map.Entry<String, Long> entry : credits.entrySet()) {
+                amounts.put(entry.getKey(), (long) entry.getValue());
+            }
+            JSONObject event = new JSONObject();
+            event.put("type", CREDIT);
+            event.put("token", token);
+            event.put("amounts", amounts);
+            record(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record a spend the ledger has already applied to its live balance
+     */
+    void debit(String sku, long amount) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", DEBIT);
+            event.put("sku", sku);
+            event.put("amount", amount);
+            record(event);
+            ledger.recordDebit(sku, amount); // snapshots read these, so only move once written
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record a settlement the ledger has already applied in memory
+     */
+    void settle(String token) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", SETTLE);
+            event.put("token", token);
+            record(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Journal whatever differs between the folded state and a fresh view from Google Play
+     *
+     * @param latest - owned purchases keyed by SKU as just reported by the store
+     */
+    void sync(Map<String, Purchase> latest) {
+        Set<String> grantedTokens = new HashSet<>();
+        for (Map.Entry<String, Purchase> entry : latest.entrySet()) {
+            Purchase known = purchases.get(entry.getKey());
+            Purchase purchase = entry.getValue();
+            if (known == null || !known.getPurchaseToken().equals(purchase.getPurchaseToken())) {
+                // one grant covers every SKU in a multi-product purchase
+                if (grantedTokens.add(purchase.getPurchaseToken())) {
+                    grant(purchase);
+                }
+            }
+        }
+        for (String sku : new HashSet<>(purchases.keySet())) {
+            if (!latest.containsKey(sku)) {
+                revoke(sku);
+            }
+        }
+    }
+
+    private void appendSkuEvent(String type, String sku) {
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", type);
+            event.put("sku", sku);
+            append(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void append(JSONObject event) throws JSONException {
+        // memory state moves forward even if the disk write fails. Next compaction catches up
+        apply(event);
+        record(event);
+    }
+
+    /**
+     * Write an event without applying it. Used directly for ledger events, whose in-memory
+     * effect already happened (lock-free) before they reach the journal
+     */
+    private void record(JSONObject event) throws JSONException {
+        event.put("seq", lastSeq + 1);
+        event.put("time", System.currentTimeMillis());
+        lastSeq++;
+        tailLength++;
+        try {
+            log.append(event.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void apply(JSONObject event) throws JSONException {
+        switch (event.getString("type")) {
+            case GRANT:
+                put(new Purchase(event.getString("json"), event.getString("sig")));
+                break;
+            case REVOKE:
+            case CONSUME:
+                purchases.remove(event.getString("sku"));
+                break;
+            case CREDIT:
+                JSONObject amounts = event.getJSONObject("amounts");
+                Map<String, Long> credits = new HashMap<>();
+                for (Iterator<String> keys = amounts.keys(); keys.hasNext(); ) {
+                    String sku = keys.next();
+                    credits.put(sku, amounts.getLong(sku));
+                }
+                ledger.applyCredit(event.getString("token"), credits);
+                break;
+            case DEBIT:
+                ledger.applyDebit(event.getString("sku"), event.getLong("amount"));
+                break;
+            case SETTLE:
+                ledger.settle(event.getString("token"));
+                break;
+            default:
+                // acknowledge only records history. Ownership is unchanged
+                break;
+        }
+    }
+
+    private void put(Purchase purchase) {
+        for (String sku : purchase.getProducts()) {
+            purchases.put(sku, purchase);
+        }
+    }
+
+    boolean needsCompaction() {
+        return tailLength >= COMPACT_THRESHOLD;
+    }
+
+    /**
+     * Fold the log into a fresh snapshot and truncate it. The snapshot is committed before the log
+     * is cut so a crash in between only leaves events replay already knows to skip
+     */
+    void compact() {
+        if (tailLength == 0) {
+            return;
+        }
+
+        JSONArray snapshot = new JSONArray();
+        Set<String> tokens = new HashSet<>();
+        JSONObject ledgerSnapshot;
+        try {
+            ledgerSnapshot = ledger.toJson();
+            for (Purchase purchase : purchases.values()) {
+                if (tokens.add(purchase.getPurchaseToken())) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("json", purchase.getOriginalJson());
+                    entry.put("sig", purchase.getSignature());
+                    snapshot.put(entry);
+                }
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        boolean committed = snapshotPrefs.edit()
+                .putString(SNAPSHOT_KEY, snapshot.toString())
+                .putString(SNAPSHOT_LEDGER_KEY, ledgerSnapshot.toString())
+                .putLong(SNAPSHOT_SEQ_KEY, lastSeq)
+                .commit();
+        if (!committed) {
+            return; // keep the log. It is still the source of truth
+        }
+
+        try {
+            log.truncate(0);
+            tailLength = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
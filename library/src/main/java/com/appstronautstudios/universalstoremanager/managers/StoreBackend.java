@@ -0,0 +1,55 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchaseHistoryParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+
+/**
+ * The store StoreManager talks to. Mirrors the subset of BillingClient it uses so Google Play can
+ * be swapped for a local fake (e.g., startup benchmarks or tests). Callbacks may arrive on any
+ * thread.
+ */
+public interface StoreBackend {
+
+    /**
+     * Create the underlying client. Called once, before any other method
+     */
+    void initialize(Context context, PurchasesUpdatedListener purchasesUpdatedListener);
+
+    int getConnectionState(); // BillingClient.ConnectionState
+
+    boolean isReady();
+
+    void startConnection(BillingClientStateListener listener);
+
+    /**
+     * Close the connection and release the service binding. The backend isn't used afterward
+     */
+    void endConnection();
+
+    BillingResult launchBillingFlow(Activity activity, BillingFlowParams params);
+
+    void queryProductDetailsAsync(QueryProductDetailsParams params, ProductDetailsResponseListener listener);
+
+    void queryPurchasesAsync(QueryPurchasesParams params, PurchasesResponseListener listener);
+
+    void queryPurchaseHistoryAsync(QueryPurchaseHistoryParams params, PurchaseHistoryResponseListener listener);
+
+    void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener);
+
+    void consumeAsync(ConsumeParams params, ConsumeResponseListener listener);
+}
@@ -16,77 +16,223 @@ import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.ConsumeParams;
-import com.android.billingclient.api.PendingPurchasesParams;
 import com.android.billingclient.api.ProductDetails;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchaseHistoryParams;
 import com.android.billingclient.api.QueryPurchasesParams;
+import com.appstronautstudios.universalstoremanager.utils.PurchaseFlowState;
 import com.appstronautstudios.universalstoremanager.utils.StoreEventListener;
+import com.appstronautstudios.universalstoremanager.utils.StoreTrace;
 import com.appstronautstudios.universalstoremanager.utils.SuccessFailListener;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import org.json.JSONArray;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class StoreManager {
 
     public static final int INIT_FAIL_UNKNOWN = -99;
     public static final int PURCHASE_FAIL_UNKNOWN = -199;
+    public static final int PURCHASE_FAIL_TIMEOUT = -198;
     public static final int DETAIL_FAIL_UNKNOWN = -299;
     public static final int PARSING_FAIL_UNKNOWN = -399;
-
-    private static final StoreManager INSTANCE = new StoreManager();
-
-    private boolean debuggable;
-    private ArrayList<String> subscriptionSkus = new ArrayList<>();
-    private ArrayList<String> inAppSkus = new ArrayList<>();
-    private Map<String, Purchase> purchaseCache;
-    private ArrayList<StoreEventListener> listeners = new ArrayList<>();
+    public static final int HISTORY_FAIL_UNKNOWN = -499;
+
+    private static final long PURCHASE_QUERY_TIMEOUT_MS = 30_000; // details query stuck
+    private static final long PURCHASE_FLOW_TIMEOUT_MS = 10 * 60_000; // billing sheet never returned
+    private static final long SETTLEMENT_DELAY_MS = 2_000; // gather credits into one consume batch
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final String RECORD_KEY_ALIAS = "universal_store_manager_journal";
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Set<String> LIVE_NAMESPACES = new HashSet<>(); // guarded by itself
+    private static final StoreManager INSTANCE = new StoreManager(new Builder()); // unscoped names
+
+    private final String namespace; // null for the default instance
+    private final Executor callbackExecutor;
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+
+    // every write to the state below happens on this executor, except managed SKUs and listeners
+    // which callers replace directly so the change is visible as soon as the call returns. Readers
+    // on any thread see the latest published snapshot without taking a lock
+    private final ScheduledExecutorService stateExecutor;
+
+    private volatile boolean debuggable;
+    private final AtomicReference<ManagedSkus> managedSkus = new AtomicReference<>(ManagedSkus.EMPTY);
+    private volatile Map<String, Purchase> purchaseCache; // null until loaded
+    private final AtomicReference<List<StoreEventListener>> listeners = new AtomicReference<>(Collections.emptyList());
+    private final Map<String, List<String>> entitlementGroups = new LinkedHashMap<>(); // state thread only
+    private boolean entitlementCompilePending; // state thread only
+    private volatile EntitlementIndex entitlementIndex = EntitlementIndex.EMPTY;
+    private volatile Map<String, UniversalProductDetails> productDetailsCache = Collections.emptyMap();
+    private final Map<String, PurchaseAttempt> purchaseAttempts = new HashMap<>(); // state thread only
+    private volatile Map<String, PurchaseFlowState> purchaseFlowStates = Collections.emptyMap();
 
     private PurchasesUpdatedListener purchasesUpdatedListener;
-    private BillingClient billingClient;
+    private final StoreBackend backend;
+    private volatile boolean backendInitialized;
+    private final StoreTrace trace = new StoreTrace();
 
     private SharedPreferences storeDiskCache;
+    private PurchaseJournal purchaseJournal; // state thread only
+    private volatile PurchaseHistoryStore purchaseHistory;
+    private final ConsumableLedger consumableLedger = new ConsumableLedger();
+    private final Set<String> settlingTokens = new HashSet<>(); // state thread only
+    private boolean settlementScheduled; // state thread only
+
+    private StoreManager(Builder builder) {
+        this.namespace = builder.namespace;
+        this.callbackExecutor = builder.callbackExecutor != null ? builder.callbackExecutor : MAIN_HANDLER::post;
+        this.backend = builder.backend != null ? builder.backend : new PlayStoreBackend();
+        this.debuggable = builder.debuggable;
+
+        String threadName = namespace != null ? "StoreManager-state-" + namespace : "StoreManager-state";
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // timeouts, settlement
+        this.stateExecutor = executor;
+    }
 
-    private StoreManager() {
-        if (INSTANCE != null) {
-            throw new IllegalStateException("Already instantiated");
+    /**
+     * @return - builder for an independent StoreManager with its own backend, purchase cache,
+     * persistence namespace (required), state executor and callback dispatcher. Use getInstance()
+     * for the default shared one
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @param name - base file or prefs name
+     * @return - name scoped to this instance's persistence namespace. The default instance keeps
+     * the unscoped names so existing installs find their data
+     */
+    private String namespaced(String name) {
+        return namespace != null ? name + "_" + namespace : name;
+    }
+
+    /**
+     * Close the store connection and stop this instance's state executor. Only for instances made
+     * with newBuilder() once they are no longer needed (e.g., at the end of a test). Transitions
+     * already queued still run, then the namespace is free for a new instance. Store callbacks
+     * that arrive afterward are ignored and scheduled timeouts and settlements are cancelled
+     */
+    public void shutdown() {
+        if (this == INSTANCE) {
+            throw new IllegalStateException("The default instance can't be shut down");
+        }
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
         }
+        onStateThread(() -> {
+            if (backendInitialized) {
+                backend.endConnection();
+            }
+            // last queued task, so nothing of ours touches the namespace's files after this
+            synchronized (LIVE_NAMESPACES) {
+                LIVE_NAMESPACES.remove(namespace);
+            }
+        });
+        stateExecutor.shutdown();
     }
 
+    /**
+     * Open encrypted prefs, the purchase journal and the history store. setupBillingProcessor
+     * already does this. Runs on the state executor like every other state transition
+     */
     public void initSharedPrefs(Context context) {
+        onStateThread(() -> openStorage(context));
+    }
+
+    /**
+     * State thread only
+     */
+    private void openStorage(Context context) {
         if (storeDiskCache == null) {
             try {
+                StoreTrace.Section keystoreSection = trace.begin(StoreTrace.KEYSTORE_INIT);
                 MasterKey masterKey = new MasterKey.Builder(context)
                         .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
                         .build();
+                keystoreSection.end();
 
+                StoreTrace.Section prefsSection = trace.begin(StoreTrace.PREFS_DECRYPT);
                 storeDiskCache = EncryptedSharedPreferences.create(
                         context,
-                        "encr",
+                        namespaced("encr"),
                         masterKey,
                         EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                         EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM);
+                prefsSection.end();
+            } catch (GeneralSecurityException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // each record file loads (or creates) its AndroidKeyStore key, so time them too
+        boolean openingRecordFiles = storeDiskCache != null && (purchaseJournal == null || purchaseHistory == null);
+        StoreTrace.Section recordFilesSection = openingRecordFiles ? trace.begin(StoreTrace.RECORD_FILES_OPEN) : null;
+        if (storeDiskCache != null && purchaseJournal == null) {
+            try {
+                EncryptedRecordFile log = new EncryptedRecordFile(
+                        new File(context.getNoBackupFilesDir(), namespaced("purchase_journal")),
+                        RECORD_KEY_ALIAS);
+                purchaseJournal = new PurchaseJournal(log, storeDiskCache, consumableLedger);
             } catch (GeneralSecurityException | IOException e) {
                 e.printStackTrace();
             }
         }
+
+        if (storeDiskCache != null && purchaseHistory == null) {
+            try {
+                EncryptedRecordFile history = new EncryptedRecordFile(
+                        new File(context.getNoBackupFilesDir(), namespaced("purchase_history")),
+                        RECORD_KEY_ALIAS);
+                purchaseHistory = new PurchaseHistoryStore(history, storeDiskCache);
+            } catch (GeneralSecurityException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (recordFilesSection != null) {
+            recordFilesSection.end();
+        }
     }
 
     public static StoreManager getInstance() {
         return INSTANCE;
     }
 
-    private boolean isStoreLoaded() {
-        return purchaseCache != null;
+    /**
+     * @return - timings of the startup phases (keystore, prefs, record files, connect, queries,
+     * persist). Each phase is also emitted as a named section in system traces on API 29+
+     */
+    public StoreTrace getTrace() {
+        return trace;
     }
 
     public void setDebuggable(boolean debuggable) {
@@ -94,50 +240,136 @@ public class StoreManager {
     }
 
     public void setManagedSkus(List<String> subscriptionSkus, List<String> consumableSkus) {
-        if (subscriptionSkus != null) {
-            this.subscriptionSkus.clear();
-            this.subscriptionSkus.addAll(subscriptionSkus);
-        } else {
-            this.subscriptionSkus = new ArrayList<>();
+        // copy on the calling thread so later changes to the caller's lists can't leak in
+        managedSkus.set(new ManagedSkus(immutableCopy(subscriptionSkus), immutableCopy(consumableSkus)));
+    }
+
+    /**
+     * Takes effect immediately. Callbacks already queued on the dispatcher reach the listener
+     */
+    public void addEventListener(StoreEventListener l) {
+        listeners.updateAndGet(current -> {
+            if (current.contains(l)) {
+                return current;
+            }
+            List<StoreEventListener> updated = new ArrayList<>(current);
+            updated.add(l);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    /**
+     * Takes effect immediately. Callbacks already queued on the dispatcher skip the listener since
+     * they read the listener list when they run
+     */
+    public void removeEventListener(StoreEventListener l) {
+        listeners.updateAndGet(current -> {
+            if (!current.contains(l)) {
+                return current;
+            }
+            List<StoreEventListener> updated = new ArrayList<>(current);
+            updated.remove(l);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    /**
+     * utility function to run a state transition on the serial state executor. Purchase cache and
+     * the other published snapshots are only ever replaced from inside these tasks
+     */
+    private void onStateThread(Runnable task) {
+        try {
+            stateExecutor.execute(guarded(task));
+        } catch (RejectedExecutionException e) {
+            // shut down. Late store callbacks have nobody left to update
         }
+    }
 
-        if (consumableSkus != null) {
-            this.inAppSkus.clear();
-            this.inAppSkus.addAll(consumableSkus);
-        } else {
-            this.inAppSkus = new ArrayList<>();
+    /**
+     * Delayed counterpart of onStateThread. State thread only
+     *
+     * @return - handle to cancel the task. null if the executor is shut down
+     */
+    private ScheduledFuture<?> onStateThreadLater(Runnable task, long delayMs) {
+        try {
+            return stateExecutor.schedule(guarded(task), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
         }
     }
 
-    public void addEventListener(StoreEventListener l) {
-        if (!listeners.contains(l)) {
-            listeners.add(l);
+    /**
+     * The scheduled executor parks anything a task throws in a future nobody reads. Log it instead
+     * so a broken transition doesn't vanish without a trace
+     */
+    private static Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        };
+    }
+
+    private static List<String> immutableCopy(List<String> skus) {
+        if (skus == null) {
+            return Collections.emptyList();
         }
+        return Collections.unmodifiableList(new ArrayList<>(skus));
     }
 
-    public void removeEventListener(StoreEventListener l) {
-        listeners.remove(l);
+    /**
+     * Publish a new purchase cache and rebuild the owned entitlement bits against it. State thread
+     * only
+     */
+    private void publishPurchases(Map<String, Purchase> purchases) {
+        purchaseCache = Collections.unmodifiableMap(purchases);
+        entitlementIndex = entitlementIndex.withPurchases(purchaseCache);
+    }
+
+    /**
+     * Publish a new purchase cache containing the provided purchase. State thread only
+     */
+    private void cachePurchase(Purchase purchase) {
+        Map<String, Purchase> updated = purchaseCache != null ? new HashMap<>(purchaseCache) : new HashMap<>();
+        for (String productId : purchase.getProducts()) {
+            updated.put(productId, purchase);
+        }
+        publishPurchases(updated);
+    }
+
+    /**
+     * Publish a new purchase cache without the provided sku. State thread only
+     */
+    private void uncachePurchase(String sku) {
+        if (purchaseCache != null && purchaseCache.containsKey(sku)) {
+            Map<String, Purchase> updated = new HashMap<>(purchaseCache);
+            updated.remove(sku);
+            publishPurchases(updated);
+        }
     }
 
     private void listenerSuccessOnMain(SuccessFailListener listener, Object object) {
-        new Handler(Looper.getMainLooper()).post(() -> {
+        callbackExecutor.execute(() -> {
             if (listener != null) listener.success(object);
         });
     }
 
     private void listenerFailureOnMain(SuccessFailListener listener, Object object) {
-        new Handler(Looper.getMainLooper()).post(() -> {
+        callbackExecutor.execute(() -> {
             if (listener != null) listener.failure(object);
         });
     }
 
     /**
-     * utility function to force callback on main thread
+     * utility function to force callback on the callback dispatcher (main thread by default)
      */
     private void storePurchaseCompleteMain(String sku) {
-        new Handler(Looper.getMainLooper()).post(() -> {
-            if (!listeners.isEmpty()) {
-                for (StoreEventListener l : listeners) {
+        callbackExecutor.execute(() -> {
+            List<StoreEventListener> current = listeners.get();
+            if (!current.isEmpty()) {
+                for (StoreEventListener l : current) {
                     l.storePurchaseComplete(sku);
                 }
             }
@@ -145,12 +377,13 @@ public class StoreManager {
     }
 
     /**
-     * utility function to force callback on main thread
+     * utility function to force callback on the callback dispatcher (main thread by default)
      */
     private void storePurchasePendingMain(String sku) {
-        new Handler(Looper.getMainLooper()).post(() -> {
-            if (!listeners.isEmpty()) {
-                for (StoreEventListener l : listeners) {
+        callbackExecutor.execute(() -> {
+            List<StoreEventListener> current = listeners.get();
+            if (!current.isEmpty()) {
+                for (StoreEventListener l : current) {
                     l.storePurchasePending(sku);
                 }
             }
@@ -158,14 +391,29 @@ public class StoreManager {
     }
 
     /**
-     * utility function to force callback on main thread
+     * utility function to force callback on the callback dispatcher (main thread by default)
+     */
+    private void storePurchaseStateMain(String sku, PurchaseFlowState state) {
+        callbackExecutor.execute(() -> {
+            List<StoreEventListener> current = listeners.get();
+            if (!current.isEmpty()) {
+                for (StoreEventListener l : current) {
+                    l.storePurchaseStateChanged(sku, state);
+                }
+            }
+        });
+    }
+
+    /**
+     * utility function to force callback on the callback dispatcher (main thread by default)
      */
     private void storePurchaseErrorMain(int code) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+        callbackExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                if (!listeners.isEmpty()) {
-                    for (StoreEventListener l : listeners) {
+                List<StoreEventListener> current = listeners.get();
+                if (!current.isEmpty()) {
+                    for (StoreEventListener l : current) {
                         l.storePurchaseError(code);
                     }
                 }
@@ -173,41 +421,64 @@ public class StoreManager {
         });
     }
 
-    public void setupBillingProcessor(final Context context, ArrayList<String> subs, ArrayList<String> inApps, SuccessFailListener listener) {
-        // TODO parse and load encrypted cache from user prefs
-        initSharedPrefs(context);
-        // initialize listener
-        purchasesUpdatedListener = (billingResult, purchases) -> {
-            if (purchases != null) {
-                for (Purchase purchase : purchases) {
-                    handlePurchase(purchase, billingResult.getResponseCode()); // Process purchase
-                }
+    public void setupBillingProcessor(final Context context, ArrayList<String> subs, ArrayList<String> inApps, SuccessFailListener setupListener) {
+        StoreTrace.Section setupSection = trace.begin(StoreTrace.SETUP);
+        SuccessFailListener listener = new SuccessFailListener() {
+            @Override
+            public void success(Object object) {
+                setupSection.end();
+                if (setupListener != null) setupListener.success(object);
+            }
+
+            @Override
+            public void failure(Object object) {
+                setupSection.end();
+                if (setupListener != null) setupListener.failure(object);
             }
         };
 
         // store the sub and inApp ids
-        subscriptionSkus = subs;
-        inAppSkus = inApps;
+        managedSkus.set(new ManagedSkus(immutableCopy(subs), immutableCopy(inApps)));
+
+        onStateThread(() -> {
+            openStorage(context);
+            // initialize listener
+            if (purchasesUpdatedListener == null) {
+                purchasesUpdatedListener = (billingResult, purchases) -> {
+                    if (purchases != null) {
+                        onStateThread(() -> {
+                            for (Purchase purchase : purchases) {
+                                handlePurchase(purchase, billingResult.getResponseCode()); // Process purchase
+                            }
+                        });
+                    } else if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED) {
+                        // usually arrives without the purchase. Fetch it rather than fail
+                        onStateThread(this::completeAlreadyOwnedPurchases);
+                    } else if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                        // cancelled or failed without a purchase. Play doesn't say which SKU so
+                        // every sheet we launched is the one that closed
+                        onStateThread(() -> failLaunchedPurchases(billingResult.getResponseCode()));
+                    }
+                };
+            }
 
-        loadPurchasesFromPrefs();
+            StoreTrace.Section replaySection = trace.begin(StoreTrace.JOURNAL_REPLAY);
+            loadPurchasesFromDisk();
+            replaySection.end();
 
-        // initialize client and start connection
-        if (billingClient == null) {
-            PendingPurchasesParams params = PendingPurchasesParams.newBuilder()
-                    .enableOneTimeProducts()
-                    .build();
-            billingClient = BillingClient.newBuilder(context)
-                    .enablePendingPurchases(params)
-                    .setListener(purchasesUpdatedListener)
-                    .build();
-        }
+            // initialize client and start connection
+            if (!backendInitialized) {
+                backend.initialize(context, purchasesUpdatedListener);
+                backendInitialized = true;
+            }
 
-        // make sure that we're connected (this will internally check)
-        connectBillingClient(2, listener);
+            // make sure that we're connected (this will internally check)
+            connectBillingClient(2, listener);
+        });
     }
 
     private void connectBillingClient(int retryCounter, SuccessFailListener listener) {
-        int connectedState = billingClient.getConnectionState();
+        int connectedState = backend.getConnectionState();
         if (connectedState == BillingClient.ConnectionState.CONNECTED) {
             // already connected. Update cache and inform user
             handleBillingInitialize(listener);
@@ -216,9 +487,11 @@ public class StoreManager {
             // complete and launch the necessary callback. Do nothing
         } else {
             // connection closed or disconnected. Restart
-            billingClient.startConnection(new BillingClientStateListener() {
+            StoreTrace.Section connectSection = trace.begin(StoreTrace.BILLING_CONNECT);
+            backend.startConnection(new BillingClientStateListener() {
                 @Override
                 public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
+                    connectSection.end();
                     if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                         // The BillingClient is ready. You can query purchases here.
                         handleBillingInitialize(listener);
@@ -245,7 +518,52 @@ public class StoreManager {
         updatePurchaseCache(listener);
     }
 
+    /**
+     * Start a purchase. Repeated calls for a SKU that already has a purchase in flight are
+     * collapsed into that attempt. Progress is reported through
+     * StoreEventListener.storePurchaseStateChanged
+     */
     public void purchase(Activity activity, String productId, boolean isSubscription) {
+        // queue behind any pending setup so the billing client is guaranteed to exist
+        onStateThread(() -> {
+            PurchaseAttempt existing = purchaseAttempts.get(productId);
+            if (existing != null) {
+                if (existing.state == PurchaseFlowState.PENDING) {
+                    // Play never says when a pending purchase is declined or expires. Ask again
+                    refreshPendingPurchase(existing, isSubscription);
+                } else {
+                    // double tap. Already querying or showing the billing sheet. Tell the UI why
+                    // nothing new happens
+                    storePurchaseStateMain(productId, existing.state);
+                }
+                return;
+            }
+            if (!backendInitialized) {
+                failPurchase(productId, PURCHASE_FAIL_UNKNOWN); // setupBillingProcessor never ran
+                return;
+            }
+            PurchaseAttempt attempt = new PurchaseAttempt(productId);
+            purchaseAttempts.put(productId, attempt);
+            advancePurchase(attempt, PurchaseFlowState.QUERYING, PURCHASE_QUERY_TIMEOUT_MS);
+            try {
+                launchPurchase(activity, attempt, isSubscription);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                failPurchase(productId, PURCHASE_FAIL_UNKNOWN);
+            }
+        });
+    }
+
+    /**
+     * @param sku - SKU to check
+     * @return - state of the purchase currently in flight for this SKU. null if there is none
+     */
+    public PurchaseFlowState getPurchaseFlowState(@NonNull String sku) {
+        return purchaseFlowStates.get(sku);
+    }
+
+    private void launchPurchase(Activity activity, PurchaseAttempt attempt, boolean isSubscription) {
+        String productId = attempt.sku;
         QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
                 .setProductList(List.of(QueryProductDetailsParams.Product.newBuilder()
                         .setProductId(productId)
@@ -253,7 +571,7 @@ public class StoreManager {
                         .build()))
                 .build();
 
-        billingClient.queryProductDetailsAsync(params, (billingResult, productDetailsList) -> {
+        backend.queryProductDetailsAsync(params, (billingResult, productDetailsList) -> {
             if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && !productDetailsList.isEmpty()) {
                 BillingFlowParams.ProductDetailsParams.Builder productDetailsParamsBuilder =
                         BillingFlowParams.ProductDetailsParams.newBuilder()
@@ -271,48 +589,287 @@ public class StoreManager {
                         .setProductDetailsParamsList(List.of(productDetailsParamsBuilder.build()))
                         .build();
 
-                billingClient.launchBillingFlow(activity, flowParams);
+                onStateThread(() -> {
+                    if (purchaseAttempts.get(productId) != attempt) {
+                        return; // timed out while querying. Don't surprise the user with a sheet
+                    }
+                    advancePurchase(attempt, PurchaseFlowState.LAUNCHED, PURCHASE_FLOW_TIMEOUT_MS);
+                    // billing flow has to be launched from the UI thread
+                    MAIN_HANDLER.post(() -> {
+                        BillingResult launchResult = backend.launchBillingFlow(activity, flowParams);
+                        if (launchResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                            onStateThread(() -> failPurchase(productId, launchResult.getResponseCode()));
+                        }
+                    });
+                });
             } else {
-                storePurchaseErrorMain(billingResult.getResponseCode());
+                onStateThread(() -> failPurchase(productId, billingResult.getResponseCode()));
+            }
+        });
+    }
+
+    /**
+     * Move an in-flight attempt to a new state and restart its timeout. State thread only
+     */
+    private void advancePurchase(PurchaseAttempt attempt, PurchaseFlowState state, long timeoutMs) {
+        attempt.state = state;
+        if (attempt.timeout != null) {
+            attempt.timeout.cancel(false);
+        }
+        attempt.timeout = onStateThreadLater(() -> {
+            if (purchaseAttempts.get(attempt.sku) == attempt && attempt.state == state) {
+                failPurchase(attempt.sku, PURCHASE_FAIL_TIMEOUT);
+            }
+        }, timeoutMs);
+        publishPurchaseFlowStates();
+        storePurchaseStateMain(attempt.sku, state);
+    }
+
+    /**
+     * Park the attempt for a SKU as PENDING until Play reports it purchased or gone. Taps stay
+     * collapsed into it and no timeout applies since payment can take days. State thread only
+     */
+    private void holdPendingPurchase(String sku) {
+        PurchaseAttempt attempt = purchaseAttempts.get(sku);
+        if (attempt == null) {
+            attempt = new PurchaseAttempt(sku); // started in an earlier session or elsewhere
+            purchaseAttempts.put(sku, attempt);
+        }
+        if (attempt.timeout != null) {
+            attempt.timeout.cancel(false);
+            attempt.timeout = null;
+        }
+        attempt.state = PurchaseFlowState.PENDING;
+        publishPurchaseFlowStates();
+        storePurchaseStateMain(sku, PurchaseFlowState.PENDING);
+    }
+
+    /**
+     * Settle PENDING attempts against a fresh query. Play doesn't send an update when a pending
+     * purchase is cancelled, it just stops returning it. State thread only
+     *
+     * @param owned       - purchased SKUs as just reported by the store
+     * @param pendingSkus - SKUs the store still reports as pending
+     */
+    private void resolvePendingPurchases(Map<String, Purchase> owned, Set<String> pendingSkus) {
+        List<PurchaseAttempt> pending = new ArrayList<>();
+        for (PurchaseAttempt attempt : purchaseAttempts.values()) {
+            if (attempt.state == PurchaseFlowState.PENDING) {
+                pending.add(attempt);
+            }
+        }
+        for (PurchaseAttempt attempt : pending) {
+            if (owned.containsKey(attempt.sku)) {
+                finishPurchase(attempt.sku, PurchaseFlowState.COMPLETE);
+                storePurchaseCompleteMain(attempt.sku);
+            } else if (!pendingSkus.contains(attempt.sku)) {
+                failPurchase(attempt.sku, PURCHASE_FAIL_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * Query the SKU's product type again and settle a PENDING attempt against it. A purchase that
+     * went through is handled like a purchase update (cached, acknowledged, completed). One that
+     * is still pending re-reports PENDING. State thread only
+     */
+    private void refreshPendingPurchase(PurchaseAttempt attempt, boolean isSubscription) {
+        if (attempt.refreshing) {
+            return; // a query for this attempt is already out
+        }
+        attempt.refreshing = true;
+        Set<String> pendingSkus = Collections.synchronizedSet(new HashSet<>());
+        String productType = isSubscription ? BillingClient.ProductType.SUBS : BillingClient.ProductType.INAPP;
+        getPurchases(productType, pendingSkus, new SuccessFailListener() {
+            @Override
+            public void success(Object object) {
+                Map<String, Purchase> owned = (Map<String, Purchase>) object;
+                onStateThread(() -> {
+                    attempt.refreshing = false;
+                    if (purchaseAttempts.get(attempt.sku) != attempt || attempt.state != PurchaseFlowState.PENDING) {
+                        return; // resolved by an update while the query was out
+                    }
+                    Purchase purchase = owned.get(attempt.sku);
+                    if (purchase != null) {
+                        handlePurchase(purchase, BillingClient.BillingResponseCode.OK);
+                    } else if (pendingSkus.contains(attempt.sku)) {
+                        storePurchaseStateMain(attempt.sku, PurchaseFlowState.PENDING);
+                        storePurchasePendingMain(attempt.sku);
+                    } else {
+                        failPurchase(attempt.sku, PURCHASE_FAIL_UNKNOWN);
+                    }
+                });
+            }
+
+            @Override
+            public void failure(Object object) {
+                onStateThread(() -> {
+                    attempt.refreshing = false;
+                    // couldn't reach the store. Keep waiting but let the UI know where it stands
+                    if (purchaseAttempts.get(attempt.sku) == attempt) {
+                        storePurchaseStateMain(attempt.sku, attempt.state);
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Drop the in-flight attempt for a SKU (if any) and report its final state. State thread only
+     */
+    private void finishPurchase(String sku, PurchaseFlowState state) {
+        PurchaseAttempt attempt = purchaseAttempts.remove(sku);
+        if (attempt != null) {
+            if (attempt.timeout != null) {
+                attempt.timeout.cancel(false);
+            }
+            publishPurchaseFlowStates();
+        }
+        storePurchaseStateMain(sku, state);
+    }
+
+    /**
+     * State thread only
+     */
+    private void failPurchase(String sku, int code) {
+        finishPurchase(sku, PurchaseFlowState.FAILED);
+        storePurchaseErrorMain(code);
+    }
+
+    /**
+     * State thread only
+     */
+    private void failLaunchedPurchases(int code) {
+        List<String> launched = launchedPurchases();
+        for (String sku : launched) {
+            finishPurchase(sku, PurchaseFlowState.FAILED);
+        }
+        // a user cancel is only a state change. Apps never got an error callback for it
+        if (!launched.isEmpty() && code != BillingClient.BillingResponseCode.USER_CANCELED) {
+            storePurchaseErrorMain(code);
+        }
+    }
+
+    /**
+     * The user already owns what a launched sheet offered. Refresh the purchase cache and complete
+     * the launched attempts it now covers. State thread only
+     */
+    private void completeAlreadyOwnedPurchases() {
+        List<String> launched = launchedPurchases();
+        if (launched.isEmpty()) {
+            return;
+        }
+        updatePurchaseCache(new SuccessFailListener() {
+            @Override
+            public void success(Object object) {
+                onStateThread(() -> {
+                    Map<String, Purchase> cache = purchaseCache;
+                    for (String sku : launched) {
+                        if (cache != null && cache.containsKey(sku)) {
+                            finishPurchase(sku, PurchaseFlowState.COMPLETE);
+                            storePurchaseCompleteMain(sku);
+                        } else {
+                            failPurchase(sku, BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failure(Object object) {
+                int code = object instanceof Integer ? (Integer) object : PURCHASE_FAIL_UNKNOWN;
+                onStateThread(() -> {
+                    for (String sku : launched) {
+                        failPurchase(sku, code);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * State thread only
+     */
+    private List<String> launchedPurchases() {
+        List<String> launched = new ArrayList<>();
+        for (PurchaseAttempt attempt : purchaseAttempts.values()) {
+            if (attempt.state == PurchaseFlowState.LAUNCHED) {
+                launched.add(attempt.sku);
+            }
+        }
+        return launched;
+    }
+
+    /**
+     * State thread only
+     */
+    private void publishPurchaseFlowStates() {
+        Map<String, PurchaseFlowState> states = new HashMap<>();
+        for (PurchaseAttempt attempt : purchaseAttempts.values()) {
+            states.put(attempt.sku, attempt.state);
+        }
+        purchaseFlowStates = Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * State thread only
+     */
+    private void completePurchase(Purchase purchase) {
+        for (String sku : purchase.getProducts()) {
+            finishPurchase(sku, PurchaseFlowState.COMPLETE);
+            storePurchaseCompleteMain(sku);
+        }
+    }
+
     private void handlePurchase(Purchase purchase, int responseCode) {
         if (responseCode == BillingClient.BillingResponseCode.OK) {
             if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
                 // Add purchase to cache
-                for (String productId : purchase.getProducts()) {
-                    purchaseCache.put(productId, purchase);
-                }
+                cachePurchase(purchase);
+                journal(journal -> journal.grant(purchase));
+                creditConsumables(purchase);
 
                 acknowledgePurchase(purchase, new SuccessFailListener() {
                     @Override
                     public void success(Object object) {
-                        storePurchaseCompleteMain(null);
+                        onStateThread(() -> {
+                            if (!purchase.isAcknowledged()) {
+                                journal(journal -> journal.acknowledge(purchase));
+                            }
+                            completePurchase(purchase);
+                        });
                     }
 
                     @Override
                     public void failure(Object object) {
-                        if (object instanceof BillingResult) {
-                            storePurchaseErrorMain(((BillingResult) object).getResponseCode());
-                        } else {
-                            storePurchaseErrorMain(PURCHASE_FAIL_UNKNOWN);
-                        }
+                        int code = object instanceof Integer ? (Integer) object : PURCHASE_FAIL_UNKNOWN;
+                        onStateThread(() -> {
+                            for (String sku : purchase.getProducts()) {
+                                finishPurchase(sku, PurchaseFlowState.FAILED);
+                            }
+                            storePurchaseErrorMain(code);
+                        });
                     }
                 });
             } else if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
-                storePurchasePendingMain(null);
+                for (String sku : purchase.getProducts()) {
+                    // nothing left to do in the sheet. Completion arrives in a later update
+                    holdPendingPurchase(sku);
+                    storePurchasePendingMain(sku);
+                }
             }
         } else if (responseCode == BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED) {
             if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
                 // Add purchase to cache
-                for (String productId : purchase.getProducts()) {
-                    purchaseCache.put(productId, purchase);
-                }
-                storePurchaseCompleteMain(null);
+                cachePurchase(purchase);
+                journal(journal -> journal.grant(purchase));
+                creditConsumables(purchase);
+                completePurchase(purchase);
             }
         } else {
+            for (String sku : purchase.getProducts()) {
+                finishPurchase(sku, PurchaseFlowState.FAILED);
+            }
             storePurchaseErrorMain(responseCode);
         }
     }
@@ -322,13 +879,16 @@ public class StoreManager {
             AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
                     .setPurchaseToken(purchase.getPurchaseToken())
                     .build();
-            billingClient.acknowledgePurchase(params, billingResult -> {
+            backend.acknowledgePurchase(params, billingResult -> {
                 if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                     listenerSuccessOnMain(listener, null);
                 } else {
                     listenerFailureOnMain(listener, billingResult.getResponseCode());
                 }
             });
+        } else {
+            // already acknowledged (e.g., restored on another device). Nothing to wait for
+            listenerSuccessOnMain(listener, null);
         }
     }
 
@@ -338,20 +898,35 @@ public class StoreManager {
      * @param listener - success/fail of cache update operation. Returns int code on failure
      */
     private void updatePurchaseCache(SuccessFailListener listener) {
-        getPurchases(BillingClient.ProductType.INAPP, new SuccessFailListener() {
+        Set<String> pendingSkus = Collections.synchronizedSet(new HashSet<>());
+        getPurchases(BillingClient.ProductType.INAPP, pendingSkus, new SuccessFailListener() {
             @Override
             public void success(Object object1) {
-                getPurchases(BillingClient.ProductType.SUBS, new SuccessFailListener() {
+                getPurchases(BillingClient.ProductType.SUBS, pendingSkus, new SuccessFailListener() {
                     @Override
                     public void success(Object object2) {
                         Map<String, Purchase> updatedPurchases = new HashMap<>();
                         updatedPurchases.putAll((Map<String, Purchase>) object1);
                         updatedPurchases.putAll((Map<String, Purchase>) object2);
-                        // update memory cache and prefs cache
-                        purchaseCache = updatedPurchases;
-                        savePurchasesToPrefs();
-                        // inform callback
-                        listenerSuccessOnMain(listener, updatedPurchases);
+                        onStateThread(() -> {
+                            // update memory cache and journal whatever changed
+                            publishPurchases(updatedPurchases);
+                            resolvePendingPurchases(updatedPurchases, pendingSkus);
+                            StoreTrace.Section persistSection = trace.begin(StoreTrace.PERSIST);
+                            journal(journal -> journal.sync(updatedPurchases));
+                            persistSection.end();
+                            Set<String> ownedTokens = new HashSet<>();
+                            for (Purchase purchase : new HashSet<>(updatedPurchases.values())) {
+                                creditConsumables(purchase);
+                                ownedTokens.add(purchase.getPurchaseToken());
+                            }
+                            // consumed tokens never come back so their credit guard can go
+                            consumableLedger.pruneCredited(ownedTokens);
+                            // connected now so anything left over from last session can settle
+                            scheduleSettlement();
+                            // inform callback
+                            listenerSuccessOnMain(listener, purchaseCache);
+                        });
                     }
 
                     @Override
@@ -371,15 +946,18 @@ public class StoreManager {
     /**
      * Query product type and update cache as needed
      *
-     * @param skuType  - BillingClient.ProductType to query
-     * @param listener - callback listener. Failure return response code
+     * @param skuType     - BillingClient.ProductType to query
+     * @param pendingSkus - filled with SKUs the store reports as pending
+     * @param listener    - callback listener. Failure return response code
      */
-    private void getPurchases(String skuType, SuccessFailListener listener) {
+    private void getPurchases(String skuType, Set<String> pendingSkus, SuccessFailListener listener) {
         QueryPurchasesParams params = QueryPurchasesParams.newBuilder()
                 .setProductType(skuType)
                 .build();
 
-        billingClient.queryPurchasesAsync(params, (billingResult, purchases) -> {
+        StoreTrace.Section querySection = trace.begin(BillingClient.ProductType.SUBS.equals(skuType) ? StoreTrace.QUERY_SUBS : StoreTrace.QUERY_INAPP);
+        backend.queryPurchasesAsync(params, (billingResult, purchases) -> {
+            querySection.end();
             if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                 Map<String, Purchase> updatedCache = new HashMap<>(); // Temporary cache
 
@@ -388,6 +966,8 @@ public class StoreManager {
                         // Check if the purchase should be kept in cache
                         if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
                             updatedCache.put(productId, purchase);
+                        } else if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                            pendingSkus.add(productId);
                         }
                     }
                 }
@@ -398,44 +978,141 @@ public class StoreManager {
         });
     }
 
-    // Load purchases from encrypted SharedPreferences
-    private void loadPurchasesFromPrefs() {
-        if (storeDiskCache == null) return;
+    /**
+     * Import INAPP and SUBS purchase history (including expired, cancelled and consumed purchases)
+     * into local storage. Records are written one at a time and only those newer than the last
+     * import are added
+     *
+     * @param listener - success returns Integer count of newly imported records. Failure returns
+     *                 response code or HISTORY_FAIL_UNKNOWN if local storage failed
+     */
+    public void importPurchaseHistory(SuccessFailListener listener) {
+        onStateThread(() -> importPurchaseHistory(BillingClient.ProductType.INAPP, 0, new SuccessFailListener() {
+            @Override
+            public void success(Object object1) {
+                importPurchaseHistory(BillingClient.ProductType.SUBS, (Integer) object1, new SuccessFailListener() {
+                    @Override
+                    public void success(Object object2) {
+                        listenerSuccessOnMain(listener, object2);
+                    }
+
+                    @Override
+                    public void failure(Object object) {
+                        listenerFailureOnMain(listener, object);
+                    }
+                });
+            }
+
+            @Override
+            public void failure(Object object) {
+                listenerFailureOnMain(listener, object);
+            }
+        }));
+    }
+
+    /**
+     * State thread only. Calls listener directly (not on main) with running total of imports
+     */
+    @SuppressWarnings("deprecation") // the only API that returns expired and consumed purchases
+    private void importPurchaseHistory(String productType, int importedSoFar, SuccessFailListener listener) {
+        PurchaseHistoryStore history = purchaseHistory;
+        if (history == null) {
+            listener.failure(HISTORY_FAIL_UNKNOWN);
+            return;
+        }
 
+        QueryPurchaseHistoryParams params = QueryPurchaseHistoryParams.newBuilder()
+                .setProductType(productType)
+                .build();
+        backend.queryPurchaseHistoryAsync(params, (billingResult, records) -> onStateThread(() -> {
+            if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                listener.failure(billingResult.getResponseCode());
+                return;
+            }
+            try {
+                int imported = records != null ? history.importRecords(productType, records) : 0;
+                listener.success(importedSoFar + imported);
+            } catch (GeneralSecurityException | IOException e) {
+                e.printStackTrace();
+                listener.failure(HISTORY_FAIL_UNKNOWN);
+            }
+        }));
+    }
+
+    /**
+     * Page through imported purchase history without loading all of it. Reads disk as it goes so
+     * iterate off the main thread
+     *
+     * @return - cursor over every imported record. Empty if nothing was imported or local storage
+     * is unavailable
+     */
+    public PurchaseHistoryCursor openPurchaseHistory() {
+        PurchaseHistoryStore history = purchaseHistory;
+        return history != null ? history.open(HISTORY_PAGE_SIZE) : PurchaseHistoryCursor.empty();
+    }
+
+    /**
+     * Replay the purchase journal into the memory cache, migrating the legacy single-blob prefs
+     * entry on first run. State thread only
+     */
+    private void loadPurchasesFromDisk() {
+        if (purchaseJournal == null || purchaseCache != null) return;
+
+        Map<String, Purchase> loaded = purchaseJournal.replay();
+        if (loaded.isEmpty() && storeDiskCache.contains("purchases")) {
+            for (Purchase purchase : loadLegacyPurchasesFromPrefs().values()) {
+                purchaseJournal.grant(purchase);
+            }
+            storeDiskCache.edit().remove("purchases").apply();
+            loaded = purchaseJournal.replay();
+        }
+
+        if (!loaded.isEmpty()) {
+            publishPurchases(new HashMap<>(loaded));
+        }
+    }
+
+    // Load purchases saved by older versions to encrypted SharedPreferences
+    private Map<String, Purchase> loadLegacyPurchasesFromPrefs() {
         Gson gson = new Gson();
         String jsonString = storeDiskCache.getString("purchases", "[]");
+        Map<String, Purchase> loaded = new HashMap<>();
         try {
             JSONArray jsonArray = new JSONArray(jsonString);
             for (int i = 0; i < jsonArray.length(); i++) {
                 try {
                     Purchase p = gson.fromJson(jsonArray.getString(i), Purchase.class);
                     for (String productId : p.getProducts()) {
-                        purchaseCache.put(productId, p);
+                        loaded.put(productId, p);
                     }
                 } catch (JsonSyntaxException e) {
                     e.printStackTrace();
-                    return; // Handle error properly in production
+                    return loaded; // Handle error properly in production
                 }
 
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return loaded;
     }
 
-    // Save purchases to encrypted SharedPreferences
-    private void savePurchasesToPrefs() {
-        if (storeDiskCache == null) return;
-
-        Gson gson = new Gson();
-        JSONArray jsonArray = new JSONArray();
+    /**
+     * Record an event in the purchase journal (if persistence is available) and fold the log into
+     * a snapshot once it has grown enough. State thread only
+     */
+    private void journal(JournalWrite write) {
+        if (purchaseJournal == null) return;
 
-        for (Map.Entry<String, Purchase> entry : purchaseCache.entrySet()) {
-            Purchase purchase = entry.getValue();
-            jsonArray.put(gson.toJson(purchase, Purchase.class)); // Add each Purchase as JSON
+        write.apply(purchaseJournal);
+        if (purchaseJournal.needsCompaction()) {
+            // run after whatever transitions are already queued instead of inline
+            onStateThread(purchaseJournal::compact);
         }
+    }
 
-        storeDiskCache.edit().putString("purchases", jsonArray.toString()).apply();
+    private interface JournalWrite {
+        void apply(PurchaseJournal journal);
     }
 
     /**
@@ -447,30 +1124,143 @@ public class StoreManager {
      *                 Success will return token.
      */
     public void consumePurchase(String sku, SuccessFailListener listener) {
-        Purchase purchase = purchaseCache.get(sku); // Retrieve from cache
+        onStateThread(() -> {
+            Map<String, Purchase> cache = purchaseCache;
+            Purchase purchase = cache != null ? cache.get(sku) : null; // Retrieve from cache
+
+            if (purchase == null) {
+                // Purchase not in cache. Cannot consume without it.
+                listenerFailureOnMain(listener, BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
+                return; // Exit early
+            }
 
-        if (purchase == null) {
-            // Purchase not in cache. Cannot consume without it.
-            listenerFailureOnMain(listener, BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
-            return; // Exit early
-        }
+            // Create consumption parameters using the cached purchase token
+            ConsumeParams consumeParams = ConsumeParams.newBuilder()
+                    .setPurchaseToken(purchase.getPurchaseToken())
+                    .build();
 
-        // Create consumption parameters using the cached purchase token
-        ConsumeParams consumeParams = ConsumeParams.newBuilder()
-                .setPurchaseToken(purchase.getPurchaseToken())
-                .build();
+            backend.consumeAsync(consumeParams, (billingResult, purchaseToken) -> {
+                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    onStateThread(() -> {
+                        // Remove the purchase from cache since it's now consumed
+                        uncachePurchase(sku);
+                        journal(journal -> journal.consume(sku));
+                        listenerSuccessOnMain(listener, purchaseToken);
+                    });
+                } else {
+                    listenerFailureOnMain(listener, billingResult.getResponseCode());
+                }
+            });
+        });
+    }
 
-        billingClient.consumeAsync(consumeParams, (billingResult, purchaseToken) -> {
-            if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                // Remove the purchase from cache since it's now consumed
-                purchaseCache.remove(sku);
-                listenerSuccessOnMain(listener, purchaseToken);
-            } else {
-                listenerFailureOnMain(listener, billingResult.getResponseCode());
+    /**
+     * Track a consumable SKU in the local balance ledger. Each verified purchase of it credits
+     * unitsPerPurchase * quantity immediately and is consumed with Google Play later in batches.
+     * Register before setupBillingProcessor so no purchase arrives untracked
+     *
+     * @param sku              - in-app SKU to track
+     * @param unitsPerPurchase - balance units granted per purchased quantity (e.g., coins per pack)
+     */
+    public void registerConsumable(@NonNull String sku, long unitsPerPurchase) {
+        onStateThread(() -> {
+            consumableLedger.register(sku, unitsPerPurchase);
+            Map<String, Purchase> cache = purchaseCache;
+            if (cache != null && cache.containsKey(sku)) {
+                creditConsumables(cache.get(sku));
             }
         });
     }
 
+    /**
+     * @param sku - registered consumable SKU
+     * @return - current local balance. Lock-free, safe to call from any thread
+     */
+    public long getConsumableBalance(@NonNull String sku) {
+        return consumableLedger.balance(sku);
+    }
+
+    /**
+     * Atomically deduct from a local consumable balance
+     *
+     * @param sku    - registered consumable SKU
+     * @param amount - units to spend
+     * @return - true if the balance covered the amount and has been reduced. False leaves it as is
+     */
+    public boolean spendConsumable(@NonNull String sku, long amount) {
+        if (!consumableLedger.tryDebit(sku, amount)) {
+            return false;
+        }
+        onStateThread(() -> journal(journal -> journal.debit(sku, amount)));
+        return true;
+    }
+
+    /**
+     * Credit registered consumables in a purchase once per token. State thread only
+     */
+    private void creditConsumables(Purchase purchase) {
+        if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+            return;
+        }
+        Map<String, Long> credits = consumableLedger.credit(purchase);
+        if (!credits.isEmpty()) {
+            journal(journal -> journal.credit(purchase.getPurchaseToken(), credits));
+            scheduleSettlement();
+        }
+    }
+
+    /**
+     * State thread only
+     */
+    private void scheduleSettlement() {
+        if (!settlementScheduled && !consumableLedger.unsettled().isEmpty()) {
+            settlementScheduled = true;
+            onStateThreadLater(this::settleConsumables, SETTLEMENT_DELAY_MS);
+        }
+    }
+
+    /**
+     * Consume every credited but unsettled purchase with Google Play. Safe to retry: a token only
+     * settles (and is journaled) once, and ITEM_NOT_OWNED means an earlier attempt already
+     * consumed it. State thread only
+     */
+    private void settleConsumables() {
+        settlementScheduled = false;
+        StoreBackend client = backend;
+        if (!backendInitialized || !client.isReady()) {
+            return; // picked up again once the purchase cache refreshes after connecting
+        }
+
+        for (Map.Entry<String, Set<String>> entry : consumableLedger.unsettled().entrySet()) {
+            String token = entry.getKey();
+            Set<String> skus = entry.getValue();
+            if (!settlingTokens.add(token)) {
+                continue; // consume already in flight
+            }
+
+            ConsumeParams consumeParams = ConsumeParams.newBuilder()
+                    .setPurchaseToken(token)
+                    .build();
+            client.consumeAsync(consumeParams, (billingResult, purchaseToken) -> onStateThread(() -> {
+                settlingTokens.remove(token);
+                int code = billingResult.getResponseCode();
+                if (code == BillingClient.BillingResponseCode.OK || code == BillingClient.BillingResponseCode.ITEM_NOT_OWNED) {
+                    if (consumableLedger.settle(token)) {
+                        journal(journal -> journal.settle(token));
+                    }
+                    for (String sku : skus) {
+                        Map<String, Purchase> cache = purchaseCache;
+                        Purchase cached = cache != null ? cache.get(sku) : null;
+                        if (cached != null && token.equals(cached.getPurchaseToken())) {
+                            uncachePurchase(sku);
+                            journal(journal -> journal.consume(sku));
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
 
     /**
      * Fetch all product details as UniversalProductDetails wrapper class
@@ -478,10 +1268,10 @@ public class StoreManager {
      * @param listener - success return arraylist of UniversalProductDetails. Failure returns code
      */
     public void getAllProductDetails(SuccessFailListener listener) {
-        getProductDetails(subscriptionSkus, BillingClient.ProductType.SUBS, new SuccessFailListener() {
+        onStateThread(() -> getProductDetails(managedSkus.get().subs, BillingClient.ProductType.SUBS, new SuccessFailListener() {
             @Override
             public void success(Object object1) {
-                getProductDetails(inAppSkus, BillingClient.ProductType.INAPP, new SuccessFailListener() {
+                onStateThread(() -> getProductDetails(managedSkus.get().inApps, BillingClient.ProductType.INAPP, new SuccessFailListener() {
                     @Override
                     public void success(Object object2) {
                         ArrayList<UniversalProductDetails> allProductDetails = new ArrayList<>();
@@ -506,14 +1296,14 @@ public class StoreManager {
                             listenerFailureOnMain(listener, DETAIL_FAIL_UNKNOWN);
                         }
                     }
-                });
+                }));
             }
 
             @Override
             public void failure(Object object) {
                 listenerFailureOnMain(listener, object);
             }
-        });
+        }));
     }
 
     /**
@@ -522,7 +1312,7 @@ public class StoreManager {
      * @param listener - success return arraylist of UniversalProductDetails. Failure returns code
      */
     public void getSubDetails(SuccessFailListener listener) {
-        getProductDetails(subscriptionSkus, BillingClient.ProductType.SUBS, listener);
+        onStateThread(() -> getProductDetails(managedSkus.get().subs, BillingClient.ProductType.SUBS, listener));
     }
 
     /**
@@ -531,10 +1321,10 @@ public class StoreManager {
      * @param listener - success return arraylist of UniversalProductDetails. Failure returns code
      */
     public void getInAppDetails(SuccessFailListener listener) {
-        getProductDetails(inAppSkus, BillingClient.ProductType.INAPP, listener);
+        onStateThread(() -> getProductDetails(managedSkus.get().inApps, BillingClient.ProductType.INAPP, listener));
     }
 
-    private void getProductDetails(ArrayList<String> productIds, String productType, SuccessFailListener listener) {
+    private void getProductDetails(List<String> productIds, String productType, SuccessFailListener listener) {
         ArrayList<QueryProductDetailsParams.Product> products = new ArrayList<>();
         for (String productId : productIds) {
             products.add(QueryProductDetailsParams.Product.newBuilder()
@@ -548,19 +1338,24 @@ public class StoreManager {
                         .setProductList(products)
                         .build();
 
-        billingClient.queryProductDetailsAsync(
+        backend.queryProductDetailsAsync(
                 queryProductDetailsParams,
                 (billingResult, productDetailsList) -> {
                     if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        try {
-                            ArrayList<UniversalProductDetails> details = new ArrayList<>();
-                            for (ProductDetails productDetails : productDetailsList) {
-                                details.add(UniversalProductDetails.fromProductDetails(productDetails));
+                        // parse and derive pricing off the calling thread, once per fetch
+                        onStateThread(() -> {
+                            try {
+                                ArrayList<UniversalProductDetails> details = new ArrayList<>();
+                                for (ProductDetails productDetails : productDetailsList) {
+                                    details.add(UniversalProductDetails.fromProductDetails(productDetails));
+                                }
+                                details = UniversalProductDetails.withSavings(details);
+                                cacheProductDetails(details);
+                                listenerSuccessOnMain(listener, details);
+                            } catch (Exception e) {
+                                listenerFailureOnMain(listener, PARSING_FAIL_UNKNOWN);
                             }
-                            listenerSuccessOnMain(listener, details);
-                        } catch (Exception e) {
-                            listenerFailureOnMain(listener, PARSING_FAIL_UNKNOWN);
-                        }
+                        });
                     } else {
                         listenerFailureOnMain(listener, billingResult.getResponseCode());
                     }
@@ -568,12 +1363,106 @@ public class StoreManager {
         );
     }
 
+    /**
+     * Register a named feature that is unlocked by owning any of the provided SKUs. Groups are
+     * compiled into bitsets in the background so later checks don't need to walk SKU lists.
+     * Registering an existing name replaces its SKUs
+     *
+     * @param name             - feature name to check later with hasEntitlement
+     * @param subscriptionSkus - subscription SKUs that unlock the feature. May be null
+     * @param consumableSkus   - in-app SKUs that unlock the feature. May be null
+     */
+    public void registerEntitlementGroup(@NonNull String name, List<String> subscriptionSkus, List<String> consumableSkus) {
+        List<String> skus = new ArrayList<>();
+        if (subscriptionSkus != null) skus.addAll(subscriptionSkus);
+        if (consumableSkus != null) skus.addAll(consumableSkus);
+        onStateThread(() -> {
+            entitlementGroups.put(name, skus);
+            scheduleEntitlementCompile();
+        });
+    }
+
+    /**
+     * @param name - feature name previously passed to registerEntitlementGroup
+     */
+    public void unregisterEntitlementGroup(@NonNull String name) {
+        onStateThread(() -> {
+            if (entitlementGroups.remove(name) != null) {
+                scheduleEntitlementCompile();
+            }
+        });
+    }
+
+    /**
+     * Coalesce a burst of registrations into a single compile. State thread only
+     */
+    private void scheduleEntitlementCompile() {
+        if (!entitlementCompilePending) {
+            entitlementCompilePending = true;
+            onStateThread(() -> {
+                entitlementCompilePending = false;
+                entitlementIndex = EntitlementIndex.compile(entitlementGroups, purchaseCache);
+            });
+        }
+    }
+
+    /**
+     * @param name - registered entitlement group name
+     * @return - true if any SKU in the group is owned. False if the group is unknown or the store
+     * hasn't loaded yet
+     */
+    public boolean hasEntitlement(@NonNull String name) {
+        if (debuggable) {
+            return true;
+        } else {
+            return entitlementIndex.has(name);
+        }
+    }
+
+    /**
+     * @return - state of every registered entitlement group keyed by group name. Resolved once per
+     * purchase cache update so this is safe to call on every render
+     */
+    public Map<String, Boolean> getEntitlements() {
+        EntitlementIndex index = entitlementIndex;
+        if (debuggable) {
+            Map<String, Boolean> states = new HashMap<>();
+            for (String name : index.groupNames()) {
+                states.put(name, true);
+            }
+            return states;
+        } else {
+            return index.states();
+        }
+    }
+
+    /**
+     * Publish fetched details alongside previously cached ones. State thread only
+     */
+    private void cacheProductDetails(List<UniversalProductDetails> details) {
+        Map<String, UniversalProductDetails> updated = new HashMap<>(productDetailsCache);
+        for (UniversalProductDetails detail : details) {
+            updated.put(detail.getProductId(), detail);
+        }
+        productDetailsCache = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * @param productId - SKU to look up
+     * @return - details (with precomputed pricing) from the most recent fetch including this SKU.
+     * null if it hasn't been fetched yet
+     */
+    public UniversalProductDetails getCachedProductDetails(@NonNull String productId) {
+        return productDetailsCache.get(productId);
+    }
+
     /**
      * @return - true if subscribed to any of the managed subscription SKUs or if owns any of the
      * managed consumable SKUs. False otherwise
      */
     public boolean hasAnySubOrConsumable() {
-        return hasAnySubOrConsumable(subscriptionSkus, inAppSkus);
+        ManagedSkus skus = managedSkus.get();
+        return hasAnySubOrConsumable(skus.subs, skus.inApps);
     }
 
     /**
@@ -603,7 +1492,7 @@ public class StoreManager {
      * @return - true if purchased any managed consumable, false otherwise
      */
     public boolean hasAnyConsumable() {
-        return hasAnyConsumable(inAppSkus);
+        return hasAnyConsumable(managedSkus.get().inApps);
     }
 
     /**
@@ -611,12 +1500,13 @@ public class StoreManager {
      * @return - true if purchased any provided SKUs, false otherwise
      */
     public boolean hasAnyConsumable(@NonNull List<String> consumableSkus) {
-        if (isStoreLoaded()) {
+        Map<String, Purchase> cache = purchaseCache; // read the published snapshot once
+        if (cache != null) {
             if (debuggable) {
                 return true;
             } else {
                 for (String sku : consumableSkus) {
-                    if (purchaseCache.containsKey(sku)) {
+                    if (cache.containsKey(sku)) {
                         return true;
                     }
                 }
@@ -641,19 +1531,20 @@ public class StoreManager {
      * @return - true if subscribed to any managed SKUs, false otherwise
      */
     public boolean isSubscribedToAny() {
-        return isSubscribedToAny(subscriptionSkus);
+        return isSubscribedToAny(managedSkus.get().subs);
     }
 
     /**
      * @return - true if subscribed to any provided SKUs, false otherwise
      */
     public boolean isSubscribedToAny(@NonNull List<String> skus) {
-        if (isStoreLoaded()) {
+        Map<String, Purchase> cache = purchaseCache; // read the published snapshot once
+        if (cache != null) {
             if (debuggable) {
                 return true;
             } else {
                 for (String sku : skus) {
-                    if (purchaseCache.containsKey(sku)) {
+                    if (cache.containsKey(sku)) {
                         return true;
                     }
                 }
@@ -663,4 +1554,95 @@ public class StoreManager {
             return false;
         }
     }
+
+    /**
+     * Managed subscription and in-app SKUs, published together so readers never see one list from
+     * an older call than the other
+     */
+    private static final class ManagedSkus {
+        static final ManagedSkus EMPTY = new ManagedSkus(Collections.emptyList(), Collections.emptyList());
+
+        final List<String> subs;
+        final List<String> inApps;
+
+        ManagedSkus(List<String> subs, List<String> inApps) {
+            this.subs = subs;
+            this.inApps = inApps;
+        }
+    }
+
+    /**
+     * Book-keeping for one purchase attempt of a SKU. State thread only
+     */
+    private static final class PurchaseAttempt {
+        final String sku;
+        PurchaseFlowState state;
+        ScheduledFuture<?> timeout;
+        boolean refreshing; // re-querying a PENDING purchase
+
+        PurchaseAttempt(String sku) {
+            this.sku = sku;
+        }
+    }
+
+    public static class Builder {
+        private StoreBackend backend;
+        private String namespace;
+        private Executor callbackExecutor;
+        private boolean debuggable;
+
+        private Builder() {
+        }
+
+        /**
+         * @param backend - store to talk to. Defaults to a new PlayStoreBackend
+         */
+        public Builder setBackend(@NonNull StoreBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * @param namespace - keeps this instance's prefs, journal and history files apart from
+         *                  every other instance (e.g., an account id). Required. Letters, digits,
+         *                  '_' and '-' only. Free again once the instance using it is shut down
+         */
+        public Builder setNamespace(@NonNull String namespace) {
+            if (!namespace.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("Invalid namespace: " + namespace);
+            }
+            this.namespace = namespace;
+            return this;
+        }
+
+        /**
+         * @param callbackExecutor - dispatcher for every SuccessFailListener and
+         *                         StoreEventListener callback. Defaults to the main thread
+         */
+        public Builder setCallbackExecutor(@NonNull Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        public Builder setDebuggable(boolean debuggable) {
+            this.debuggable = debuggable;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException - if no namespace was set or a live instance already uses
+         *                               it. Either would mix this instance's data into another's
+         */
+        public StoreManager build() {
+            if (namespace == null) {
+                throw new IllegalStateException("setNamespace is required. Only getInstance() uses the default storage");
+            }
+            synchronized (LIVE_NAMESPACES) {
+                if (!LIVE_NAMESPACES.add(namespace)) {
+                    throw new IllegalStateException("Namespace already in use by a live instance: " + namespace);
+                }
+            }
+            return new StoreManager(this);
+        }
+    }
 }
@@ -0,0 +1,132 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class UniversalOffer {
+    private final String basePlanId;
+    private final String offerId; // null for the base plan itself
+    private final String offerToken;
+    private final List<String> tags;
+    private final List<UniversalPricingPhase> pricingPhases;
+    private final UniversalPricingPhase recurringPhase;
+    private final int introSavingsPercent;
+
+    public UniversalOffer(String basePlanId, String offerId, String offerToken, List<String> tags, List<UniversalPricingPhase> pricingPhases) {
+        this.basePlanId = basePlanId;
+        this.offerId = offerId;
+        this.offerToken = offerToken;
+        this.tags = tags != null ? Collections.unmodifiableList(new ArrayList<>(tags)) : Collections.emptyList();
+        this.pricingPhases = pricingPhases != null ? Collections.unmodifiableList(new ArrayList<>(pricingPhases)) : Collections.emptyList();
+
+        // the recurring phase is the price the user ends up paying once any intro phases run out
+        UniversalPricingPhase recurring = null;
+        for (UniversalPricingPhase phase : this.pricingPhases) {
+            if (phase.isRecurring()) {
+                recurring = phase;
+                break;
+            }
+        }
+        if (recurring == null && !this.pricingPhases.isEmpty()) {
+            recurring = this.pricingPhases.get(this.pricingPhases.size() - 1);
+        }
+        this.recurringPhase = recurring;
+
+        // savings of the first paid intro phase compared to the recurring price, both per month
+        int savings = 0;
+        if (recurring != null && recurring.getPricePerMonthMicros() > 0) {
+            for (UniversalPricingPhase phase : this.pricingPhases) {
+                if (phase != recurring && !phase.isFree() && phase.getPricePerMonthMicros() > 0) {
+                    savings = savingsPercent(phase.getPricePerMonthMicros(), recurring.getPricePerMonthMicros());
+                    break;
+                }
+            }
+        }
+        this.introSavingsPercent = savings;
+    }
+
+    /**
+     * @param details - Google Billing SubscriptionOfferDetails to copy
+     * @return - UniversalOffer with every pricing phase of the offer
+     */
+    public static UniversalOffer fromOfferDetails(ProductDetails.SubscriptionOfferDetails details) {
+        List<UniversalPricingPhase> phases = new ArrayList<>();
+        List<ProductDetails.PricingPhase> phaseList = details.getPricingPhases().getPricingPhaseList();
+        if (phaseList != null) {
+            for (ProductDetails.PricingPhase phase : phaseList) {
+                phases.add(UniversalPricingPhase.fromPricingPhase(phase));
+            }
+        }
+        return new UniversalOffer(
+                details.getBasePlanId(),
+                details.getOfferId(),
+                details.getOfferToken(),
+                details.getOfferTags(),
+                phases
+        );
+    }
+
+    /**
+     * @return - whole percent that price is below reference. 0 if it isn't cheaper
+     */
+    static int savingsPercent(long priceMicros, long referenceMicros) {
+        if (referenceMicros <= 0 || priceMicros >= referenceMicros) {
+            return 0;
+        }
+        return (int) ((referenceMicros - priceMicros) * 100 / referenceMicros);
+    }
+
+    // Getters
+    public String getBasePlanId() {
+        return basePlanId;
+    }
+
+    public String getOfferId() {
+        return offerId;
+    }
+
+    public String getOfferToken() {
+        return offerToken;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public List<UniversalPricingPhase> getPricingPhases() {
+        return pricingPhases;
+    }
+
+    public UniversalPricingPhase getRecurringPhase() {
+        return recurringPhase;
+    }
+
+    public int getIntroSavingsPercent() {
+        return introSavingsPercent;
+    }
+
+    public boolean isBasePlan() {
+        return offerId == null;
+    }
+
+    public boolean hasFreeTrial() {
+        for (UniversalPricingPhase phase : pricingPhases) {
+            if (phase != recurringPhase && phase.isFree()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasIntroPrice() {
+        for (UniversalPricingPhase phase : pricingPhases) {
+            if (phase != recurringPhase && !phase.isFree()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
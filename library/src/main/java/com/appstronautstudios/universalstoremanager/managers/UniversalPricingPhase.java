@@ -0,0 +1,124 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class UniversalPricingPhase {
+    private static final Pattern ISO_PERIOD = Pattern.compile("P(?:(\\d+)Y)?(?:(\\d+)M)?(?:(\\d+)W)?(?:(\\d+)D)?");
+    private static final double DAYS_PER_MONTH = 365.25 / 12;
+
+    private final String formattedPrice; // Formatted price string (e.g., "$4.99")
+    private final long priceAmountMicros;
+    private final String priceCurrencyCode;
+    private final String billingPeriod; // ISO 8601 period (e.g., "P1M"). null for one-time purchases
+    private final int billingCycleCount;
+    private final int recurrenceMode; // ProductDetails.RecurrenceMode
+    private final long pricePerWeekMicros;
+    private final long pricePerMonthMicros;
+    private final long pricePerYearMicros;
+
+    public UniversalPricingPhase(String formattedPrice, long priceAmountMicros, String priceCurrencyCode, String billingPeriod, int billingCycleCount, int recurrenceMode) {
+        this.formattedPrice = formattedPrice;
+        this.priceAmountMicros = priceAmountMicros;
+        this.priceCurrencyCode = priceCurrencyCode;
+        this.billingPeriod = billingPeriod;
+        this.billingCycleCount = billingCycleCount;
+        this.recurrenceMode = recurrenceMode;
+
+        // normalize once so paywalls can compare plans of different lengths without re-deriving
+        double months = periodInMonths(billingPeriod);
+        if (months > 0) {
+            this.pricePerWeekMicros = Math.round(priceAmountMicros / months / (DAYS_PER_MONTH / 7));
+            this.pricePerMonthMicros = Math.round(priceAmountMicros / months);
+            this.pricePerYearMicros = Math.round(priceAmountMicros / months * 12);
+        } else {
+            this.pricePerWeekMicros = 0;
+            this.pricePerMonthMicros = 0;
+            this.pricePerYearMicros = 0;
+        }
+    }
+
+    /**
+     * @param phase - Google Billing PricingPhase to copy
+     * @return - UniversalPricingPhase with the same price, period and recurrence
+     */
+    public static UniversalPricingPhase fromPricingPhase(ProductDetails.PricingPhase phase) {
+        return new UniversalPricingPhase(
+                phase.getFormattedPrice(),
+                phase.getPriceAmountMicros(),
+                phase.getPriceCurrencyCode(),
+                phase.getBillingPeriod(),
+                phase.getBillingCycleCount(),
+                phase.getRecurrenceMode()
+        );
+    }
+
+    /**
+     * @param isoPeriod - ISO 8601 period such as "P1W", "P3M" or "P1Y"
+     * @return - length of the period in months (fractional for weeks and days). 0 if unparseable
+     */
+    static double periodInMonths(String isoPeriod) {
+        if (isoPeriod == null) {
+            return 0;
+        }
+        Matcher matcher = ISO_PERIOD.matcher(isoPeriod);
+        if (!matcher.matches()) {
+            return 0;
+        }
+        double months = group(matcher, 1) * 12 + group(matcher, 2);
+        months += (group(matcher, 3) * 7 + group(matcher, 4)) / DAYS_PER_MONTH;
+        return months;
+    }
+
+    private static int group(Matcher matcher, int index) {
+        String value = matcher.group(index);
+        return value != null ? Integer.parseInt(value) : 0;
+    }
+
+    // Getters
+    public String getFormattedPrice() {
+        return formattedPrice;
+    }
+
+    public long getPriceAmountMicros() {
+        return priceAmountMicros;
+    }
+
+    public String getPriceCurrencyCode() {
+        return priceCurrencyCode;
+    }
+
+    public String getBillingPeriod() {
+        return billingPeriod;
+    }
+
+    public int getBillingCycleCount() {
+        return billingCycleCount;
+    }
+
+    public int getRecurrenceMode() {
+        return recurrenceMode;
+    }
+
+    public long getPricePerWeekMicros() {
+        return pricePerWeekMicros;
+    }
+
+    public long getPricePerMonthMicros() {
+        return pricePerMonthMicros;
+    }
+
+    public long getPricePerYearMicros() {
+        return pricePerYearMicros;
+    }
+
+    public boolean isFree() {
+        return priceAmountMicros == 0;
+    }
+
+    public boolean isRecurring() {
+        return recurrenceMode == ProductDetails.RecurrenceMode.INFINITE_RECURRING;
+    }
+}
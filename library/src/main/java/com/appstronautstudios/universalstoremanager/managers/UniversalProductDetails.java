@@ -2,7 +2,12 @@ package com.appstronautstudios.universalstoremanager.managers;
 
 import com.android.billingclient.api.ProductDetails;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UniversalProductDetails {
     private final String productId;
@@ -11,21 +16,109 @@ public class UniversalProductDetails {
     private final String priceText; // Formatted price string (e.g., "$4.99")
     private final String priceCurrencyCode;
     private final float priceValue; // Direct float representation of the price
+    private final long priceAmountMicros;
     private final boolean isSubscription;
+    private final List<UniversalOffer> offers; // empty for one-time products
+    private final List<UniversalOffer> basePlans; // one offer per base plan id, in offer order
+    private final Map<String, Integer> basePlanSavingsPercent; // keyed by base plan id
+    private final long pricePerMonthMicros; // base plan recurring price per month. 0 for one-time products
+    private final int savingsPercent; // per-month savings against the priciest base plan fetched alongside
 
     public UniversalProductDetails(String productId, String title, String description, String priceText, String priceCurrencyCode, float priceValue, boolean isSubscription) {
+        this(productId, title, description, priceText, priceCurrencyCode, Math.round(priceValue * 1_000_000d), isSubscription, null, 0);
+    }
+
+    public UniversalProductDetails(String productId, String title, String description, String priceText, String priceCurrencyCode, long priceAmountMicros, boolean isSubscription, List<UniversalOffer> offers, int savingsPercent) {
+        this(productId, title, description, priceText, priceCurrencyCode, priceAmountMicros, isSubscription, offers, savingsPercent, 0);
+    }
+
+    /**
+     * @param referenceMicros - per-month price base plan savings are measured against. The priciest
+     *                        base plan of this product is used if it is higher
+     */
+    private UniversalProductDetails(String productId, String title, String description, String priceText, String priceCurrencyCode, long priceAmountMicros, boolean isSubscription, List<UniversalOffer> offers, int savingsPercent, long referenceMicros) {
         this.productId = productId;
         this.title = title;
         this.description = description;
         this.priceText = priceText;
         this.priceCurrencyCode = priceCurrencyCode;
-        this.priceValue = priceValue;
+        this.priceAmountMicros = priceAmountMicros;
+        this.priceValue = priceAmountMicros / 1_000_000f; // Convert micros to float
         this.isSubscription = isSubscription;
+        this.offers = offers != null ? Collections.unmodifiableList(new ArrayList<>(offers)) : Collections.emptyList();
+        this.savingsPercent = savingsPercent;
+
+        // monthly and yearly plans usually live as base plans of one product, so compare each of
+        // them per month (recurring phase) against the priciest one
+        Map<String, UniversalOffer> plans = new LinkedHashMap<>();
+        for (UniversalOffer offer : this.offers) {
+            UniversalOffer known = plans.get(offer.getBasePlanId());
+            if (known == null || (!known.isBasePlan() && offer.isBasePlan())) {
+                plans.put(offer.getBasePlanId(), offer);
+            }
+        }
+        this.basePlans = Collections.unmodifiableList(new ArrayList<>(plans.values()));
+
+        long reference = Math.max(referenceMicros, maxBasePlanPricePerMonthMicros(this.basePlans));
+        Map<String, Integer> planSavings = new HashMap<>();
+        for (UniversalOffer plan : this.basePlans) {
+            planSavings.put(plan.getBasePlanId(), UniversalOffer.savingsPercent(recurringPricePerMonthMicros(plan), reference));
+        }
+        this.basePlanSavingsPercent = Collections.unmodifiableMap(planSavings);
+
+        this.pricePerMonthMicros = recurringPricePerMonthMicros(getBasePlan());
+    }
+
+    private static long recurringPricePerMonthMicros(UniversalOffer offer) {
+        UniversalPricingPhase recurring = offer != null ? offer.getRecurringPhase() : null;
+        return recurring != null ? recurring.getPricePerMonthMicros() : 0;
+    }
+
+    private static long maxBasePlanPricePerMonthMicros(List<UniversalOffer> basePlans) {
+        long max = 0;
+        for (UniversalOffer plan : basePlans) {
+            max = Math.max(max, recurringPricePerMonthMicros(plan));
+        }
+        return max;
+    }
+
+    /**
+     * Compare every subscription base plan in the list per month against the most expensive one so
+     * paywalls can show "save X%" without doing the math while rendering
+     *
+     * @param details - product details fetched together (e.g., all subs in one query)
+     * @return - copies of the provided details with product and base plan savings filled in
+     */
+    static ArrayList<UniversalProductDetails> withSavings(List<UniversalProductDetails> details) {
+        long referenceMicros = 0;
+        for (UniversalProductDetails detail : details) {
+            if (detail.isSubscription) {
+                referenceMicros = Math.max(referenceMicros, maxBasePlanPricePerMonthMicros(detail.basePlans));
+            }
+        }
+
+        ArrayList<UniversalProductDetails> result = new ArrayList<>(details.size());
+        for (UniversalProductDetails detail : details) {
+            result.add(new UniversalProductDetails(
+                    detail.productId,
+                    detail.title,
+                    detail.description,
+                    detail.priceText,
+                    detail.priceCurrencyCode,
+                    detail.priceAmountMicros,
+                    detail.isSubscription,
+                    detail.offers,
+                    detail.isSubscription ? UniversalOffer.savingsPercent(detail.pricePerMonthMicros, referenceMicros) : 0,
+                    detail.isSubscription ? referenceMicros : 0
+            ));
+        }
+        return result;
     }
 
     /**
      * @param details - Google Billing ProductDetails object to parse and expose
-     * @return - UniversalProductDetails object with title, price float, currency code etc
+     * @return - UniversalProductDetails object with title, price, currency code, every offer and
+     * pricing phase etc
      * @throws Exception - If there are any issues parsing out this detail object throw an exception with a string error message
      */
     public static UniversalProductDetails fromProductDetails(ProductDetails details) throws Exception {
@@ -34,13 +127,18 @@ public class UniversalProductDetails {
         }
 
         boolean isSubscription = details.getSubscriptionOfferDetails() != null;
-        float priceAmount = 0.0f;
+        long priceAmountMicros = 0;
         String formattedPrice = "0.00";
         String currencyCode = "N/A";
+        List<UniversalOffer> offers = new ArrayList<>();
 
         if (isSubscription) {
             List<ProductDetails.SubscriptionOfferDetails> offerDetails = details.getSubscriptionOfferDetails();
             if (offerDetails != null && !offerDetails.isEmpty()) {
+                for (ProductDetails.SubscriptionOfferDetails offer : offerDetails) {
+                    offers.add(UniversalOffer.fromOfferDetails(offer));
+                }
+
                 // determine the correct pricing phase to reference for pricing
                 ProductDetails.PricingPhase pricingPhase = null;
                 for (ProductDetails.SubscriptionOfferDetails offer : offerDetails) {
@@ -65,7 +163,7 @@ public class UniversalProductDetails {
                 }
                 formattedPrice = pricingPhase.getFormattedPrice();
                 currencyCode = pricingPhase.getPriceCurrencyCode();
-                priceAmount = pricingPhase.getPriceAmountMicros() / 1_000_000f; // Convert micros to float
+                priceAmountMicros = pricingPhase.getPriceAmountMicros();
             } else {
                 throw new Exception("Null subscription offer details");
             }
@@ -74,7 +172,7 @@ public class UniversalProductDetails {
             if (oneTimePurchaseDetails != null) {
                 formattedPrice = oneTimePurchaseDetails.getFormattedPrice();
                 currencyCode = oneTimePurchaseDetails.getPriceCurrencyCode();
-                priceAmount = oneTimePurchaseDetails.getPriceAmountMicros() / 1_000_000f; // Convert micros to float
+                priceAmountMicros = oneTimePurchaseDetails.getPriceAmountMicros();
             } else {
                 throw new Exception("Null one-time purchase offer details");
             }
@@ -86,8 +184,10 @@ public class UniversalProductDetails {
                 details.getDescription(),
                 formattedPrice,
                 currencyCode,
-                priceAmount,
-                isSubscription
+                priceAmountMicros,
+                isSubscription,
+                offers,
+                0
         );
     }
 
@@ -116,7 +216,61 @@ public class UniversalProductDetails {
         return priceValue;
     }
 
+    public long getPriceAmountMicros() {
+        return priceAmountMicros;
+    }
+
     public boolean isSubscription() {
         return isSubscription;
     }
+
+    public List<UniversalOffer> getOffers() {
+        return offers;
+    }
+
+    public long getPricePerMonthMicros() {
+        return pricePerMonthMicros;
+    }
+
+    public int getSavingsPercent() {
+        return savingsPercent;
+    }
+
+    /**
+     * @return - the first base plan (see getBasePlans). null for one-time products
+     */
+    public UniversalOffer getBasePlan() {
+        return basePlans.isEmpty() ? null : basePlans.get(0);
+    }
+
+    /**
+     * @return - one offer per base plan (e.g., monthly and yearly), preferring the offer without an
+     * offer id. Empty for one-time products
+     */
+    public List<UniversalOffer> getBasePlans() {
+        return basePlans;
+    }
+
+    /**
+     * @param basePlanId - base plan to look up
+     * @return - the base plan's offer (see getBasePlans). null if this product has no such plan
+     */
+    public UniversalOffer getBasePlan(String basePlanId) {
+        for (UniversalOffer plan : basePlans) {
+            if (plan.getBasePlanId().equals(basePlanId)) {
+                return plan;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param basePlanId - base plan to look up
+     * @return - whole percent the base plan's recurring price per month is below the priciest base
+     * plan of this product (or of every sub fetched alongside it). 0 if unknown or not cheaper
+     */
+    public int getBasePlanSavingsPercent(String basePlanId) {
+        Integer savings = basePlanSavingsPercent.get(basePlanId);
+        return savings != null ? savings : 0;
+    }
 }
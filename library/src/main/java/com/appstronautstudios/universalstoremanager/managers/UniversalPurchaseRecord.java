@@ -0,0 +1,90 @@
+package com.appstronautstudios.universalstoremanager.managers;
+
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class UniversalPurchaseRecord {
+    private final List<String> productIds;
+    private final String productType; // BillingClient.ProductType
+    private final String purchaseToken;
+    private final long purchaseTime;
+    private final int quantity;
+    private final String originalJson;
+    private final String signature;
+
+    public UniversalPurchaseRecord(List<String> productIds, String productType, String purchaseToken, long purchaseTime, int quantity, String originalJson, String signature) {
+        this.productIds = productIds != null ? Collections.unmodifiableList(new ArrayList<>(productIds)) : Collections.emptyList();
+        this.productType = productType;
+        this.purchaseToken = purchaseToken;
+        this.purchaseTime = purchaseTime;
+        this.quantity = quantity;
+        this.originalJson = originalJson;
+        this.signature = signature;
+    }
+
+    /**
+     * @param record      - Google Billing PurchaseHistoryRecord to copy
+     * @param productType - BillingClient.ProductType the record was queried with
+     * @return - UniversalPurchaseRecord with products, token, time and the signed original JSON
+     */
+    public static UniversalPurchaseRecord fromHistoryRecord(PurchaseHistoryRecord record, String productType) {
+        return new UniversalPurchaseRecord(
+                record.getProducts(),
+                productType,
+                record.getPurchaseToken(),
+                record.getPurchaseTime(),
+                record.getQuantity(),
+                record.getOriginalJson(),
+                record.getSignature()
+        );
+    }
+
+    String toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", productType);
+        json.put("json", originalJson);
+        json.put("sig", signature);
+        return json.toString();
+    }
+
+    static UniversalPurchaseRecord fromJson(String json) throws JSONException {
+        JSONObject object = new JSONObject(json);
+        PurchaseHistoryRecord record = new PurchaseHistoryRecord(object.getString("json"), object.getString("sig"));
+        return fromHistoryRecord(record, object.getString("type"));
+    }
+
+    // Getters
+    public List<String> getProductIds() {
+        return productIds;
+    }
+
+    public String getProductType() {
+        return productType;
+    }
+
+    public String getPurchaseToken() {
+        return purchaseToken;
+    }
+
+    public long getPurchaseTime() {
+        return purchaseTime;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public String getOriginalJson() {
+        return originalJson;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+}
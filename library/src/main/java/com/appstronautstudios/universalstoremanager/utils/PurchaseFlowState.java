@@ -0,0 +1,9 @@
+package com.appstronautstudios.universalstoremanager.utils;
+
+public enum PurchaseFlowState {
+    QUERYING, // fetching product details before the billing sheet can be shown
+    LAUNCHED, // billing sheet handed to Google Play
+    PENDING, // purchase accepted but awaiting payment (e.g., cash). Completes later
+    COMPLETE, // purchased and acknowledged
+    FAILED // declined, cancelled, errored or timed out
+}
@@ -5,6 +5,10 @@ public interface StoreEventListener {
         // optional method. Do nothing by default
     }
 
+    default void storePurchaseStateChanged(String sku, PurchaseFlowState state) {
+        // optional method. Do nothing by default
+    }
+
     void storePurchaseComplete(String sku); // id of completed purchase
 
     void storePurchaseError(int errorCode);
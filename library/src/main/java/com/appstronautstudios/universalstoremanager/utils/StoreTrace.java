@@ -0,0 +1,78 @@
+package com.appstronautstudios.universalstoremanager.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named timing sections for StoreManager startup. Each section shows up in system traces (Perfetto
+ * / systrace) as an async slice on API 29+ and its duration is kept so apps and benchmarks can
+ * read it back on any API level. Sections can begin and end on different threads.
+ */
+public final class StoreTrace {
+
+    public static final String SETUP = "USM setup"; // setupBillingProcessor until its success callback
+    public static final String KEYSTORE_INIT = "USM keystore init";
+    public static final String PREFS_DECRYPT = "USM prefs decrypt";
+    public static final String RECORD_FILES_OPEN = "USM record files open"; // journal + history keystore key
+    public static final String JOURNAL_REPLAY = "USM journal replay";
+    public static final String BILLING_CONNECT = "USM billing connect";
+    public static final String QUERY_INAPP = "USM query inapp";
+    public static final String QUERY_SUBS = "USM query subs";
+    public static final String PERSIST = "USM persist";
+
+    private static final AtomicInteger COOKIES = new AtomicInteger();
+
+    private final Map<String, Long> durationsMicros = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public Section begin(String name) {
+        int cookie = COOKIES.incrementAndGet();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+        return new Section(name, cookie, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @return - copy of the latest duration (microseconds) of every section that has ended, in the
+     * order they first ended
+     */
+    public Map<String, Long> getDurationsMicros() {
+        synchronized (durationsMicros) {
+            return new LinkedHashMap<>(durationsMicros);
+        }
+    }
+
+    public final class Section {
+        private final String name;
+        private final int cookie;
+        private final long startNanos;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private Section(String name, int cookie, long startNanos) {
+            this.name = name;
+            this.cookie = cookie;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Close the section. Only the first call counts so callbacks that can fire again (e.g.,
+         * after a reconnect) don't end the same cookie twice or overwrite the duration
+         */
+        public void end() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(name, cookie);
+            }
+            durationsMicros.put(name, (SystemClock.elapsedRealtimeNanos() - startNanos) / 1_000);
+        }
+    }
+}